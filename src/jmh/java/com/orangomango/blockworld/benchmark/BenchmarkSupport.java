@@ -0,0 +1,89 @@
+package com.orangomango.blockworld.benchmark;
+
+import javafx.application.Platform;
+
+import java.util.*;
+import java.util.function.Supplier;
+import java.lang.ref.Reference;
+
+import com.orangomango.blockworld.model.*;
+
+public class BenchmarkSupport{
+	public static final int SEED = 12345;
+	private static boolean started;
+
+	// Mesh building loads the block images, so the JavaFX toolkit must be running (headless, see build.gradle)
+	public static synchronized void init(){
+		if (started) return;
+		try {
+			Platform.startup(() -> {});
+		} catch (IllegalStateException ex){
+			// Already started
+		}
+		started = true;
+	}
+
+	// Chunk positions of the terrain layer (y from 8 to 20), in a size x size area
+	public static List<Chunk.ChunkPosition> getArea(int size){
+		List<Chunk.ChunkPosition> output = new ArrayList<>();
+		for (int x = 0; x < size; x++){
+			for (int z = 0; z < size; z++){
+				for (int y = 8/Chunk.CHUNK_SIZE; y < (20+Chunk.CHUNK_SIZE-1)/Chunk.CHUNK_SIZE; y++){
+					output.add(new Chunk.ChunkPosition(x, y, z));
+				}
+			}
+		}
+		return output;
+	}
+
+	// Generate the given chunks and add them to the world, placing the blocks generated across chunks
+	public static List<Chunk> load(World world, List<Chunk.ChunkPosition> positions){
+		List<Chunk> output = new ArrayList<>();
+		for (Chunk.ChunkPosition pos : positions){
+			Chunk chunk = new Chunk(world, pos);
+			world.addChunk(chunk, pos);
+			output.add(chunk);
+		}
+		for (Chunk chunk : output){
+			for (Block block : chunk.takeOverflowBlocks()){
+				world.getPendingBlocks().add(block.getX(), block.getY(), block.getZ(), block.getId());
+			}
+		}
+		for (Chunk chunk : output){
+			chunk.buildPendingBlocks();
+		}
+		return output;
+	}
+
+	public static int[][][] getData(Chunk chunk){
+		int[][][] data = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+				for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+					data[i][j][k] = chunk.getBlockId(i, j, k);
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Heap kept alive by the value returned by the supplier, measured as the used heap after a full GC.
+	 * Only meaningful when nothing else allocates meanwhile, the benchmarks call it from their setup.
+	 */
+	public static long getRetainedSize(Supplier<?> supplier){
+		long before = getUsedHeap();
+		Object value = supplier.get();
+		long after = getUsedHeap();
+		Reference.reachabilityFence(value);
+		return after-before;
+	}
+
+	private static long getUsedHeap(){
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++){
+			System.gc();
+		}
+		return runtime.totalMemory()-runtime.freeMemory();
+	}
+}
@@ -0,0 +1,96 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Load time (generation, light and meshes) and memory of the same 64x64 blocks area (y from 8 to 32,
+ * rounded to whole chunks) with different chunk sizes.
+ * storageBytes and lightBytes count only the block and light arrays, heapBytes is the whole loaded area measured on
+ * the heap (see BenchmarkSupport.getRetainedSize): it adds the overhead of each chunk (objects, maps, meshes) and the column cache.
+ * The chunk size is read once at startup, so each size runs in its own fork.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ChunkSizeBenchmark{
+	private static final int AREA = 64;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Memory{
+		public long chunks, storageBytes, lightBytes, heapBytes, triangles;
+	}
+
+	private long heapBytes;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSupport.init();
+		this.heapBytes = BenchmarkSupport.getRetainedSize(() -> load(new Memory()));
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = "-Dblockworld.chunkSize=4")
+	public World size4(Memory memory){
+		memory.heapBytes = this.heapBytes;
+		return load(memory);
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = "-Dblockworld.chunkSize=8")
+	public World size8(Memory memory){
+		memory.heapBytes = this.heapBytes;
+		return load(memory);
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = "-Dblockworld.chunkSize=16")
+	public World size16(Memory memory){
+		memory.heapBytes = this.heapBytes;
+		return load(memory);
+	}
+
+	@Benchmark
+	@Fork(jvmArgsAppend = "-Dblockworld.chunkSize=32")
+	public World size32(Memory memory){
+		memory.heapBytes = this.heapBytes;
+		return load(memory);
+	}
+
+	private static World load(Memory memory){
+		World world = new World(BenchmarkSupport.SEED, false);
+		int size = AREA/Chunk.CHUNK_SIZE;
+		List<Chunk.ChunkPosition> positions = new ArrayList<>();
+		for (int x = 0; x < size; x++){
+			for (int z = 0; z < size; z++){
+				for (int y = 8/Chunk.CHUNK_SIZE; y < (32+Chunk.CHUNK_SIZE-1)/Chunk.CHUNK_SIZE; y++){
+					positions.add(new Chunk.ChunkPosition(x, y, z));
+				}
+			}
+		}
+
+		List<Chunk> chunks = BenchmarkSupport.load(world, positions);
+		for (Chunk chunk : chunks){
+			world.getLightEngine().initChunk(chunk);
+		}
+		for (Chunk chunk : chunks){
+			world.getLightEngine().propagateBorders(chunk);
+		}
+		memory.chunks = chunks.size();
+		memory.storageBytes = 0;
+		memory.lightBytes = 0;
+		memory.triangles = 0;
+		for (Chunk chunk : chunks){
+			chunk.getMesh();
+			memory.storageBytes += chunk.getStorage().getMemoryUsage();
+			memory.lightBytes += 16+Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE;
+			memory.triangles += chunk.getTriangles();
+		}
+		return world;
+	}
+}
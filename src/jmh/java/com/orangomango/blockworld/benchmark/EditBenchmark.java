@@ -0,0 +1,114 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.rendering3d.model.Mesh;
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Time from a block edit to the meshes of the next frame, a block is placed and broken again.
+ * fullRemesh culls and rebuilds the 27 chunks around the block after each edit (what the mouse handler used to do),
+ * targeted rebuilds only the chunks scheduled by the edit like ChunkManager.update, culling the changed blocks only.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EditBenchmark{
+	private World world;
+	private int current;
+	private int[][] positions;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Culled{
+		public long culledBlocks;
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSupport.init();
+		this.world = new World(BenchmarkSupport.SEED, false);
+		this.world.setRenderListener(new RenderListener(){
+			@Override
+			public void addMesh(Mesh mesh){
+			}
+
+			@Override
+			public void removeMesh(Mesh mesh){
+			}
+
+			@Override
+			public void clearMeshes(){
+			}
+		});
+		List<Chunk> chunks = BenchmarkSupport.load(this.world, BenchmarkSupport.getArea(8));
+		for (Chunk chunk : chunks){
+			this.world.getLightEngine().initChunk(chunk);
+		}
+		for (Chunk chunk : chunks){
+			this.world.getLightEngine().propagateBorders(chunk);
+		}
+		for (Chunk chunk : chunks){
+			chunk.refresh();
+		}
+		this.world.takeMeshUpdates();
+
+		// Blocks in the inner chunks, just above the ground
+		Random random = new Random(BenchmarkSupport.SEED);
+		this.positions = new int[256][];
+		for (int i = 0; i < this.positions.length; i++){
+			int x = Chunk.CHUNK_SIZE*2+random.nextInt(Chunk.CHUNK_SIZE*4);
+			int z = Chunk.CHUNK_SIZE*2+random.nextInt(Chunk.CHUNK_SIZE*4);
+			int y = Math.min(this.world.getColumns().get(x / Chunk.CHUNK_SIZE, z / Chunk.CHUNK_SIZE).getHeight(x % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE)-1, 19);
+			this.positions[i] = new int[]{x, y, z};
+		}
+	}
+
+	@Benchmark
+	public void fullRemesh(Culled culled){
+		this.current = (this.current+1) % this.positions.length;
+		int[] pos = this.positions[this.current];
+		this.world.setBlockAt(pos[0], pos[1], pos[2], "stone");
+		culled.culledBlocks += remeshAround(pos);
+		this.world.removeBlockAt(pos[0], pos[1], pos[2]);
+		culled.culledBlocks += remeshAround(pos);
+	}
+
+	@Benchmark
+	public void targeted(Culled culled){
+		this.current = (this.current+1) % this.positions.length;
+		int[] pos = this.positions[this.current];
+		this.world.setBlockAt(pos[0], pos[1], pos[2], "stone");
+		culled.culledBlocks += refreshScheduled();
+		this.world.removeBlockAt(pos[0], pos[1], pos[2]);
+		culled.culledBlocks += refreshScheduled();
+	}
+
+	private int remeshAround(int[] pos){
+		this.world.takeMeshUpdates(); // Light changes, rebuilt anyway below
+		int count = 0;
+		for (int i = -1; i < 2; i++){
+			for (int j = -1; j < 2; j++){
+				for (int k = -1; k < 2; k++){
+					Chunk chunk = this.world.getChunkAt(pos[0]/Chunk.CHUNK_SIZE+i, pos[1]/Chunk.CHUNK_SIZE+k, pos[2]/Chunk.CHUNK_SIZE+j);
+					if (chunk != null){
+						chunk.markDirty();
+						count += chunk.refresh();
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	private int refreshScheduled(){
+		int count = 0;
+		for (Chunk chunk : this.world.takeMeshUpdates()){
+			count += chunk.refresh();
+		}
+		return count;
+	}
+}
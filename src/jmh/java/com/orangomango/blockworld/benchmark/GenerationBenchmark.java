@@ -0,0 +1,87 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Chunk generation throughput, serial and on a fork-join pool.
+ * The setup checks that both produce the same blocks.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class GenerationBenchmark{
+	@Param({"false", "true"})
+	public boolean superFlat;
+
+	private List<Chunk.ChunkPosition> positions;
+	private ForkJoinPool pool;
+
+	@Setup(Level.Trial)
+	public void setup(){
+		this.positions = BenchmarkSupport.getArea(8);
+		this.pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+		List<Chunk> serial = generateSerial(new World(BenchmarkSupport.SEED, this.superFlat));
+		List<Chunk> parallel = generateParallel(new World(BenchmarkSupport.SEED, this.superFlat));
+		for (int i = 0; i < serial.size(); i++){
+			if (!Arrays.deepEquals(BenchmarkSupport.getData(serial.get(i)), BenchmarkSupport.getData(parallel.get(i))) || !sameBlocks(serial.get(i).takeOverflowBlocks(), parallel.get(i).takeOverflowBlocks())){
+				throw new IllegalStateException("Parallel generation differs from serial generation in chunk "+serial.get(i));
+			}
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		this.pool.shutdown();
+	}
+
+	@Benchmark
+	public void serial(Blackhole blackhole){
+		blackhole.consume(generateSerial(new World(BenchmarkSupport.SEED, this.superFlat)));
+	}
+
+	@Benchmark
+	public void parallel(Blackhole blackhole){
+		blackhole.consume(generateParallel(new World(BenchmarkSupport.SEED, this.superFlat)));
+	}
+
+	private List<Chunk> generateSerial(World world){
+		List<Chunk> output = new ArrayList<>();
+		for (Chunk.ChunkPosition pos : this.positions){
+			output.add(new Chunk(world, pos));
+		}
+		return output;
+	}
+
+	private List<Chunk> generateParallel(World world){
+		List<Callable<Chunk>> tasks = new ArrayList<>();
+		for (Chunk.ChunkPosition pos : this.positions){
+			tasks.add(() -> new Chunk(world, pos));
+		}
+		List<Chunk> output = new ArrayList<>();
+		try {
+			for (Future<Chunk> future : this.pool.invokeAll(tasks)){
+				output.add(future.get());
+			}
+		} catch (InterruptedException | ExecutionException ex){
+			throw new IllegalStateException(ex);
+		}
+		return output;
+	}
+
+	private static boolean sameBlocks(List<Block> a, List<Block> b){
+		if (a.size() != b.size()) return false;
+		for (int i = 0; i < a.size(); i++){
+			Block ba = a.get(i);
+			Block bb = b.get(i);
+			if (ba.getX() != bb.getX() || ba.getY() != bb.getY() || ba.getZ() != bb.getZ() || ba.getId() != bb.getId()) return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+import com.orangomango.blockworld.storage.*;
+import com.orangomango.blockworld.metrics.Metrics;
+
+/**
+ * Crash recovery and write amplification of the edits journal.
+ * recover replays a journal of random edits on the saved chunks of an 8x8 area, like a start after a crash.
+ * edit logs the same edits, saves the changed chunks and checkpoints, the bytes written per edit are reported as counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JournalBenchmark{
+	@Param({"100", "1000", "10000"})
+	public int edits;
+
+	private File dir;
+	private RegionStorage storage;
+	private Map<Long, int[][][]> chunks = new HashMap<>();
+	private int[][] blockEdits;
+
+	@State(Scope.Thread)
+	public static class Crash{
+		private EditJournal journal;
+
+		@Setup(Level.Invocation)
+		public void setup(JournalBenchmark benchmark) throws IOException{
+			this.journal = new EditJournal(new File(benchmark.dir, "journal.bin"));
+			for (int[] edit : benchmark.blockEdits){
+				this.journal.append(edit[0], edit[1], edit[2], edit[3]);
+			}
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown(){
+			this.journal.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Written{
+		public long journalBytes, storageBytes, bytesPerEdit;
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		this.dir = Files.createTempDirectory("blockworld-bench").toFile();
+		this.storage = new RegionStorage(this.dir, true);
+		World world = new World(BenchmarkSupport.SEED, false);
+		this.storage.setTerrain((x, y, z) -> BenchmarkSupport.getData(new Chunk(world, new Chunk.ChunkPosition(x, y, z))), false);
+		for (Chunk chunk : BenchmarkSupport.load(world, BenchmarkSupport.getArea(8))){
+			int[][][] data = BenchmarkSupport.getData(chunk);
+			this.chunks.put(ChunkMap.pack(chunk.getX(), chunk.getY(), chunk.getZ()), data);
+			this.storage.saveChunk(chunk.getX(), chunk.getY(), chunk.getZ(), data);
+		}
+		this.storage.sync();
+
+		Random random = new Random(BenchmarkSupport.SEED);
+		this.blockEdits = new int[this.edits][];
+		for (int i = 0; i < this.edits; i++){
+			int y = 8+random.nextInt(12);
+			this.blockEdits[i] = new int[]{random.nextInt(8*Chunk.CHUNK_SIZE), y, random.nextInt(8*Chunk.CHUNK_SIZE), random.nextInt(4)};
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		this.storage.close();
+		for (File file : this.dir.listFiles()){
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Benchmark
+	public int recover(Crash crash) throws IOException{
+		return crash.journal.recover(this.storage);
+	}
+
+	// Same steps as the game: log every edit, then save each changed chunk once and drop the journal
+	@Benchmark
+	public void edit(Written written) throws IOException{
+		long journalStart = Metrics.counter("journal.bytesWritten").get();
+		long storageStart = Metrics.counter("storage.bytesWritten").get();
+
+		EditJournal journal = new EditJournal(new File(this.dir, "journal.bin"));
+		Set<Long> changed = new LinkedHashSet<>();
+		for (int[] edit : this.blockEdits){
+			journal.append(edit[0], edit[1], edit[2], edit[3]);
+			long key = ChunkMap.pack(edit[0]/Chunk.CHUNK_SIZE, edit[1]/Chunk.CHUNK_SIZE, edit[2]/Chunk.CHUNK_SIZE);
+			this.chunks.get(key)[edit[0]%Chunk.CHUNK_SIZE][edit[1]%Chunk.CHUNK_SIZE][edit[2]%Chunk.CHUNK_SIZE] = edit[3];
+			changed.add(key);
+		}
+		long position = journal.getPosition();
+		for (long key : changed){
+			this.storage.saveChunk(ChunkMap.unpackX(key), ChunkMap.unpackY(key), ChunkMap.unpackZ(key), this.chunks.get(key));
+		}
+		this.storage.sync();
+		journal.checkpoint(position);
+		journal.close();
+
+		written.journalBytes = Metrics.counter("journal.bytesWritten").get()-journalStart;
+		written.storageBytes = Metrics.counter("storage.bytesWritten").get()-storageStart;
+		written.bytesPerEdit = (written.journalBytes+written.storageBytes)/this.edits;
+	}
+}
@@ -0,0 +1,80 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Light of a new chunk and relight after placing or breaking a block.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LightBenchmark{
+	private World world;
+	private List<Chunk> chunks;
+	private int current;
+	private int[][] positions;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Updates{
+		public long updatedBlocks;
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		this.world = new World(BenchmarkSupport.SEED, false);
+		this.chunks = BenchmarkSupport.load(this.world, BenchmarkSupport.getArea(8));
+		for (Chunk chunk : this.chunks){
+			this.world.getLightEngine().initChunk(chunk);
+		}
+		for (Chunk chunk : this.chunks){
+			this.world.getLightEngine().propagateBorders(chunk);
+		}
+		this.world.takeMeshUpdates();
+
+		// Blocks in the inner chunks, just above the ground
+		Random random = new Random(BenchmarkSupport.SEED);
+		this.positions = new int[256][];
+		for (int i = 0; i < this.positions.length; i++){
+			int x = Chunk.CHUNK_SIZE*2+random.nextInt(Chunk.CHUNK_SIZE*4);
+			int z = Chunk.CHUNK_SIZE*2+random.nextInt(Chunk.CHUNK_SIZE*4);
+			int y = Math.min(this.world.getColumns().get(x / Chunk.CHUNK_SIZE, z / Chunk.CHUNK_SIZE).getHeight(x % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE)-1, 19);
+			this.positions[i] = new int[]{x, y, z};
+		}
+	}
+
+	@Benchmark
+	public void initChunk(){
+		this.current = (this.current+1) % this.chunks.size();
+		this.world.getLightEngine().initChunk(this.chunks.get(this.current));
+	}
+
+	// Place a torch and break it again
+	@Benchmark
+	public void torch(Updates updates){
+		this.current = (this.current+1) % this.positions.length;
+		int[] pos = this.positions[this.current];
+		long start = this.world.getLightEngine().getUpdatedBlocks();
+		this.world.setBlockAt(pos[0], pos[1], pos[2], "torch");
+		this.world.removeBlockAt(pos[0], pos[1], pos[2]);
+		updates.updatedBlocks += this.world.getLightEngine().getUpdatedBlocks()-start;
+		this.world.takeMeshUpdates();
+	}
+
+	// Place a block that stops the sky light and break it again
+	@Benchmark
+	public void shadow(Updates updates){
+		this.current = (this.current+1) % this.positions.length;
+		int[] pos = this.positions[this.current];
+		long start = this.world.getLightEngine().getUpdatedBlocks();
+		this.world.setBlockAt(pos[0], pos[1], pos[2], "stone");
+		this.world.removeBlockAt(pos[0], pos[1], pos[2]);
+		updates.updatedBlocks += this.world.getLightEngine().getUpdatedBlocks()-start;
+		this.world.takeMeshUpdates();
+	}
+}
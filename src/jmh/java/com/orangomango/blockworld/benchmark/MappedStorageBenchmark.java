@@ -0,0 +1,85 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+import com.orangomango.blockworld.storage.RegionStorage;
+
+/**
+ * Chunk loads from region files read through the file channel against memory-mapped region files.
+ * Cold loads open (and map) the region files again every time, warm loads use the files already open.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MappedStorageBenchmark{
+	@Param({"false", "true"})
+	public boolean mapped;
+
+	@Param({"true", "false"})
+	public boolean compression;
+
+	private File dir;
+	private RegionStorage storage;
+	private List<Chunk> chunks;
+	private List<int[][][]> data = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		this.dir = Files.createTempDirectory("blockworld-bench").toFile();
+		World world = new World(BenchmarkSupport.SEED, false);
+		this.chunks = BenchmarkSupport.load(world, BenchmarkSupport.getArea(8));
+		for (Chunk chunk : this.chunks){
+			this.data.add(BenchmarkSupport.getData(chunk));
+		}
+		this.storage = new RegionStorage(this.dir, this.compression, this.mapped);
+		save();
+		warmLoad();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		this.storage.close();
+		for (File file : this.dir.listFiles()){
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Benchmark
+	public int coldLoad() throws IOException{
+		RegionStorage storage = new RegionStorage(this.dir, this.compression, this.mapped);
+		try {
+			return load(storage);
+		} finally {
+			storage.close();
+		}
+	}
+
+	@Benchmark
+	public int warmLoad() throws IOException{
+		return load(this.storage);
+	}
+
+	@Benchmark
+	public void save() throws IOException{
+		for (int i = 0; i < this.chunks.size(); i++){
+			Chunk chunk = this.chunks.get(i);
+			this.storage.saveChunk(chunk.getX(), chunk.getY(), chunk.getZ(), this.data.get(i));
+		}
+		this.storage.sync(); // The sectors of the old records are only reused after a sync
+	}
+
+	private int load(RegionStorage storage) throws IOException{
+		int count = 0;
+		for (Chunk chunk : this.chunks){
+			if (storage.loadChunk(chunk.getX(), chunk.getY(), chunk.getZ()) != null) count++;
+		}
+		return count;
+	}
+}
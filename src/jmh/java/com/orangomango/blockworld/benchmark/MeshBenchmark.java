@@ -0,0 +1,78 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.rendering3d.model.Mesh;
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Face culling and mesh building of a chunk surrounded by loaded chunks (what Chunk.getMesh does).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MeshBenchmark{
+	private List<Chunk> chunks = new ArrayList<>();
+	private List<byte[]> faces = new ArrayList<>();
+	private int current;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Triangles{
+		public long triangles, perBlockTriangles;
+
+		@Setup(Level.Iteration)
+		public void reset(){
+			this.triangles = 0;
+			this.perBlockTriangles = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		BenchmarkSupport.init();
+		World world = new World(BenchmarkSupport.SEED, false);
+		for (Chunk chunk : BenchmarkSupport.load(world, BenchmarkSupport.getArea(6))){
+			// Only the chunks that have all their horizontal neighbours
+			if (chunk.getX() > 0 && chunk.getZ() > 0 && chunk.getX() < 5 && chunk.getZ() < 5){
+				this.chunks.add(chunk);
+				byte[] culled = new byte[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+				new ChunkMesher(chunk).cull(culled);
+				this.faces.add(culled);
+			}
+		}
+	}
+
+	private int next(){
+		this.current = (this.current+1) % this.chunks.size();
+		return this.current;
+	}
+
+	@Benchmark
+	public int cull(){
+		int i = next();
+		return new ChunkMesher(this.chunks.get(i)).cull(new byte[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE]);
+	}
+
+	@Benchmark
+	public List<Mesh> build(Triangles counters){
+		int i = next();
+		ChunkMesher mesher = new ChunkMesher(this.chunks.get(i));
+		List<Mesh> meshes = mesher.build(this.faces.get(i));
+		counters.triangles += mesher.getTriangles();
+		counters.perBlockTriangles += mesher.getPerBlockTriangles();
+		return meshes;
+	}
+
+	@Benchmark
+	public List<Mesh> cullAndBuild(){
+		int i = next();
+		ChunkMesher mesher = new ChunkMesher(this.chunks.get(i));
+		byte[] culled = new byte[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+		mesher.cull(culled);
+		return mesher.build(culled);
+	}
+}
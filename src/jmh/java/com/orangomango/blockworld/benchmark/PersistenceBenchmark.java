@@ -0,0 +1,100 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+import com.orangomango.blockworld.storage.RegionStorage;
+
+/**
+ * Save and load round trips of chunks, region files against the old one file per chunk text format.
+ * With deltas the region records only have the blocks that differ from the generated terrain.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PersistenceBenchmark{
+	@Param({"true", "false"})
+	public boolean compression;
+
+	@Param({"false", "true"})
+	public boolean deltas;
+
+	private File dir;
+	private RegionStorage storage;
+	private List<Chunk> chunks;
+	private List<int[][][]> data = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException{
+		this.dir = Files.createTempDirectory("blockworld-bench").toFile();
+		this.storage = new RegionStorage(this.dir, this.compression);
+		World world = new World(BenchmarkSupport.SEED, false);
+		this.storage.setTerrain((x, y, z) -> BenchmarkSupport.getData(new Chunk(world, new Chunk.ChunkPosition(x, y, z))), this.deltas);
+		this.chunks = BenchmarkSupport.load(world, BenchmarkSupport.getArea(4));
+		for (Chunk chunk : this.chunks){
+			this.data.add(BenchmarkSupport.getData(chunk));
+		}
+		regionSave();
+		legacySave();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown(){
+		this.storage.close();
+		for (File file : this.dir.listFiles()){
+			file.delete();
+		}
+		this.dir.delete();
+	}
+
+	@Benchmark
+	public void regionSave() throws IOException{
+		for (int i = 0; i < this.chunks.size(); i++){
+			Chunk chunk = this.chunks.get(i);
+			this.storage.saveChunk(chunk.getX(), chunk.getY(), chunk.getZ(), this.data.get(i));
+		}
+		this.storage.sync(); // The sectors of the old records are only reused after a sync
+	}
+
+	@Benchmark
+	public int regionLoad() throws IOException{
+		int count = 0;
+		for (Chunk chunk : this.chunks){
+			if (this.storage.loadChunk(chunk.getX(), chunk.getY(), chunk.getZ()) != null) count++;
+		}
+		return count;
+	}
+
+	// Same writer as the old ChunkManager.saveChunkToFile
+	@Benchmark
+	public void legacySave() throws IOException{
+		for (int n = 0; n < this.chunks.size(); n++){
+			int[][][] chunkData = this.data.get(n);
+			BufferedWriter writer = new BufferedWriter(new FileWriter(new File(this.dir, this.chunks.get(n)+".chunk")));
+			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // z
+				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+					for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // x
+						writer.write(chunkData[k][j][i]+" ");
+					}
+					writer.newLine();
+				}
+				writer.newLine();
+			}
+			writer.close();
+		}
+	}
+
+	@Benchmark
+	public int legacyLoad() throws IOException{
+		int count = 0;
+		for (Chunk chunk : this.chunks){
+			if (RegionStorage.readLegacyChunk(new File(this.dir, chunk+".chunk")) != null) count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,130 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.rendering3d.model.Mesh;
+import com.orangomango.blockworld.model.*;
+
+/**
+ * Reads from the palette storage of every chunk in render distance, against the Block[][][] arrays
+ * (one object per voxel) the chunks used before.
+ * The memory used by the palettes, by plain int arrays and by the block arrays is reported as counters,
+ * the block arrays are measured on the heap (see BenchmarkSupport.getRetainedSize). The meshes each old
+ * block also had are not included, see MeshBenchmark for their triangles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class StorageBenchmark{
+	@Param({"2.5", "4.5", "6.5"})
+	public double renderDistance;
+
+	private List<BlockStorage> storages = new ArrayList<>();
+	private List<LegacyBlock[][][]> blockArrays;
+	private long paletteBytes, intArrayBytes, blockArrayBytes;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Memory{
+		public long paletteBytes, intArrayBytes, blockArrayBytes;
+	}
+
+	// The fields of a Block before the palette storage, the type was read from the atlas for every id lookup
+	private static class LegacyBlock{
+		private int x, y, z;
+		private World world;
+		private Mesh mesh;
+		private String type;
+		private int light = Block.MAX_LIGHT_INTENSITY;
+		private BlockMesh blockMesh;
+		private double yOffset;
+
+		public LegacyBlock(Chunk chunk, int x, int y, int z, String type){
+			this.world = chunk.getWorld();
+			this.x = x+chunk.getX()*Chunk.CHUNK_SIZE;
+			this.y = y+chunk.getY()*Chunk.CHUNK_SIZE;
+			this.z = z+chunk.getZ()*Chunk.CHUNK_SIZE;
+			this.type = type;
+			this.blockMesh = Atlas.MAIN_ATLAS.getBlockMesh(type);
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		World world = new World(BenchmarkSupport.SEED, false);
+		int radius = (int)Math.ceil(this.renderDistance);
+		List<Chunk.ChunkPosition> positions = new ArrayList<>();
+		for (int x = -radius; x <= radius; x++){
+			for (int y = -radius; y <= radius; y++){
+				for (int z = -radius; z <= radius; z++){
+					if (Math.sqrt(x*x+y*y+z*z) <= this.renderDistance){
+						positions.add(new Chunk.ChunkPosition(radius+x, 12/Chunk.CHUNK_SIZE+y, radius+z));
+					}
+				}
+			}
+		}
+		List<Chunk> chunks = BenchmarkSupport.load(world, positions);
+		for (Chunk chunk : chunks){
+			this.storages.add(chunk.getStorage());
+			this.paletteBytes += chunk.getStorage().getMemoryUsage();
+			this.intArrayBytes += 16+4L*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE;
+		}
+		this.blockArrayBytes = BenchmarkSupport.getRetainedSize(() -> this.blockArrays = getBlockArrays(chunks));
+	}
+
+	// The old layout, a block object for every block that is not air
+	private static List<LegacyBlock[][][]> getBlockArrays(List<Chunk> chunks){
+		List<LegacyBlock[][][]> output = new ArrayList<>();
+		for (Chunk chunk : chunks){
+			LegacyBlock[][][] blocks = new LegacyBlock[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+					for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+						int id = chunk.getBlockId(i, j, k);
+						if (id != 0){
+							blocks[i][j][k] = new LegacyBlock(chunk, i, j, k, Atlas.MAIN_ATLAS.getBlockType(id));
+						}
+					}
+				}
+			}
+			output.add(blocks);
+		}
+		return output;
+	}
+
+	@Benchmark
+	public int readAll(Memory memory){
+		memory.paletteBytes = this.paletteBytes;
+		memory.intArrayBytes = this.intArrayBytes;
+		memory.blockArrayBytes = this.blockArrayBytes;
+		int sum = 0;
+		for (BlockStorage storage : this.storages){
+			for (int i = 0; i < Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE; i++){
+				sum += storage.get(i);
+			}
+		}
+		return sum;
+	}
+
+	@Benchmark
+	public int readAllBlocks(Memory memory){
+		memory.paletteBytes = this.paletteBytes;
+		memory.intArrayBytes = this.intArrayBytes;
+		memory.blockArrayBytes = this.blockArrayBytes;
+		int sum = 0;
+		for (LegacyBlock[][][] blocks : this.blockArrays){
+			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){
+				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){
+					for (int k = 0; k < Chunk.CHUNK_SIZE; k++){
+						LegacyBlock block = blocks[i][j][k];
+						if (block != null) sum += Atlas.MAIN_ATLAS.getBlockId(block.type);
+					}
+				}
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,152 @@
+package com.orangomango.blockworld.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import com.orangomango.blockworld.model.*;
+import com.orangomango.blockworld.util.PerlinNoise;
+
+/**
+ * Block and chunk lookups in a loaded world, and the terrain noise.
+ * The lookups are compared with the HashMap the world used before ChunkMap, keyed by a new position
+ * object for each lookup and hashed with Objects.hash. Run with -prof gc to see the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class WorldBenchmark{
+	private static final int LOOKUPS = 4096;
+
+	private World world;
+	private Map<LegacyPosition, Chunk> legacyChunks = new HashMap<>();
+	private PerlinNoise noise;
+	private int[] xs = new int[LOOKUPS], ys = new int[LOOKUPS], zs = new int[LOOKUPS];
+
+	// Chunk.ChunkPosition as it was hashed before ChunkMap
+	private static class LegacyPosition{
+		private int x, y, z;
+
+		public LegacyPosition(int x, int y, int z){
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		@Override
+		public int hashCode(){
+			return Objects.hash(Integer.valueOf(this.x), Integer.valueOf(this.y), Integer.valueOf(this.z));
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if (other instanceof LegacyPosition){
+				LegacyPosition pos = (LegacyPosition)other;
+				return this.x == pos.x && this.y == pos.y && this.z == pos.z;
+			} else return false;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup(){
+		this.world = new World(BenchmarkSupport.SEED, false);
+		for (Chunk chunk : BenchmarkSupport.load(this.world, BenchmarkSupport.getArea(8))){
+			this.legacyChunks.put(new LegacyPosition(chunk.getX(), chunk.getY(), chunk.getZ()), chunk);
+		}
+		this.noise = new PerlinNoise(BenchmarkSupport.SEED);
+
+		Random random = new Random(BenchmarkSupport.SEED);
+		for (int i = 0; i < LOOKUPS; i++){
+			this.xs[i] = random.nextInt(8*Chunk.CHUNK_SIZE);
+			this.ys[i] = 8+random.nextInt(12);
+			this.zs[i] = random.nextInt(8*Chunk.CHUNK_SIZE);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public int getBlockIdAt(){
+		int sum = 0;
+		for (int i = 0; i < LOOKUPS; i++){
+			sum += this.world.getBlockIdAt(this.xs[i], this.ys[i], this.zs[i]);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void getBlockAt(Blackhole blackhole){
+		for (int i = 0; i < LOOKUPS; i++){
+			blackhole.consume(this.world.getBlockAt(this.xs[i], this.ys[i], this.zs[i]));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void getChunkAt(Blackhole blackhole){
+		for (int i = 0; i < LOOKUPS; i++){
+			blackhole.consume(this.world.getChunkAt(this.xs[i] / Chunk.CHUNK_SIZE, this.ys[i] / Chunk.CHUNK_SIZE, this.zs[i] / Chunk.CHUNK_SIZE));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public void getChunkAtHashMap(Blackhole blackhole){
+		for (int i = 0; i < LOOKUPS; i++){
+			blackhole.consume(this.legacyChunks.get(new LegacyPosition(this.xs[i] / Chunk.CHUNK_SIZE, this.ys[i] / Chunk.CHUNK_SIZE, this.zs[i] / Chunk.CHUNK_SIZE)));
+		}
+	}
+
+	// The 6 neighbours of a block, what face culling reads for every block
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public int neighbours(){
+		int sum = 0;
+		for (int i = 0; i < LOOKUPS; i++){
+			sum += this.world.getBlockIdAt(this.xs[i]+1, this.ys[i], this.zs[i]);
+			sum += this.world.getBlockIdAt(this.xs[i]-1, this.ys[i], this.zs[i]);
+			sum += this.world.getBlockIdAt(this.xs[i], this.ys[i]+1, this.zs[i]);
+			sum += this.world.getBlockIdAt(this.xs[i], this.ys[i]-1, this.zs[i]);
+			sum += this.world.getBlockIdAt(this.xs[i], this.ys[i], this.zs[i]+1);
+			sum += this.world.getBlockIdAt(this.xs[i], this.ys[i], this.zs[i]-1);
+		}
+		return sum;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public int neighboursHashMap(){
+		int sum = 0;
+		for (int i = 0; i < LOOKUPS; i++){
+			sum += getLegacyBlockId(this.xs[i]+1, this.ys[i], this.zs[i]);
+			sum += getLegacyBlockId(this.xs[i]-1, this.ys[i], this.zs[i]);
+			sum += getLegacyBlockId(this.xs[i], this.ys[i]+1, this.zs[i]);
+			sum += getLegacyBlockId(this.xs[i], this.ys[i]-1, this.zs[i]);
+			sum += getLegacyBlockId(this.xs[i], this.ys[i], this.zs[i]+1);
+			sum += getLegacyBlockId(this.xs[i], this.ys[i], this.zs[i]-1);
+		}
+		return sum;
+	}
+
+	// Same as World.getBlockIdAt, through the old map
+	private int getLegacyBlockId(int x, int y, int z){
+		Chunk chunk = this.legacyChunks.get(new LegacyPosition(x / Chunk.CHUNK_SIZE, y / Chunk.CHUNK_SIZE, z / Chunk.CHUNK_SIZE));
+		if (chunk != null){
+			return chunk.getBlockId(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+		} else {
+			return 0;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LOOKUPS)
+	public float noise(){
+		float sum = 0;
+		for (int i = 0; i < LOOKUPS; i++){
+			sum += this.noise.noise(this.xs[i]*0.1575f, 0, this.zs[i]*0.1575f);
+		}
+		return sum;
+	}
+}
@@ -13,11 +13,13 @@ import javafx.geometry.Point3D;
 
 import com.orangomango.rendering3d.Engine3D;
 import com.orangomango.rendering3d.model.Light;
+import com.orangomango.rendering3d.model.Mesh;
 import com.orangomango.rendering3d.model.MeshVertex;
 import com.orangomango.blockworld.model.*;
 import com.orangomango.blockworld.util.Util;
 import com.orangomango.blockworld.entity.Player;
 import com.orangomango.blockworld.console.Console;
+import com.orangomango.blockworld.metrics.Metrics;
 
 /**
  * Minecraft-clone using a 3D engine made from scratch in Java/JavaFX
@@ -28,14 +30,14 @@ import com.orangomango.blockworld.console.Console;
 public class MainApplication extends Application{
 	private static final int WIDTH = 320;
 	private static final int HEIGHT = 180;
-	private static final int CHUNKS = 9;
+	private static final int CHUNKS = Math.max(3, 36/Chunk.CHUNK_SIZE) | 1; // Chunks loaded on each side, about 36 blocks
 
 	private static Image POINTER = new Image(MainApplication.class.getResourceAsStream("/images/pointer.png"));
 	public static Engine3D ENGINE;
 
 	private String currentBlock = "wood";
 	private Color backgroundColor = Color.CYAN;
-	private double time = 1;
+	private volatile double time = 1;
 	private boolean amTime = false;
 	
 	@Override
@@ -46,12 +48,29 @@ public class MainApplication extends Application{
 		Player player = new Player(0, -15, 0, WIDTH, HEIGHT);
 		ENGINE.setCamera(player.getCamera());
 		Light light = new Light(1);
+		light.setFixedIntensity(1); // Day and night are part of the light of each triangle, see LightEngine
 		ENGINE.getLights().add(light);
 
 		World world = new World((int)System.currentTimeMillis(), false);
-		System.out.println("Seed: "+world.getSeed());
+		world.setRenderListener(new RenderListener(){
+			@Override
+			public void addMesh(Mesh mesh){
+				ENGINE.addObject(mesh);
+			}
+
+			@Override
+			public void removeMesh(Mesh mesh){
+				ENGINE.removeObject(mesh);
+			}
+
+			@Override
+			public void clearMeshes(){
+				ENGINE.clearObjects();
+			}
+		});
+		// The saved world is opened with its seed, edits not saved before a crash are recovered from the journal (/delete starts a new world)
 		ChunkManager manager = new ChunkManager(world, CHUNKS);
-		manager.deleteSavedWorld();
+		System.out.println("Seed: "+world.getSeed());
 
 		Thread dayNight = new Thread(() -> {
 			int direction = -1;
@@ -64,9 +83,6 @@ public class MainApplication extends Application{
 					}
 					direction = this.amTime ? 1 : -1;
 					this.time = Math.min(Math.max(0, this.time), 1);
-					light.setFixedIntensity(this.time);
-					this.backgroundColor = Color.hsb(this.backgroundColor.getHue(), this.backgroundColor.getSaturation(), this.time);
-					ENGINE.setBackgroundColor(this.backgroundColor);
 					Thread.sleep(250);
 				} catch (InterruptedException ex){
 					ex.printStackTrace();
@@ -83,8 +99,13 @@ public class MainApplication extends Application{
 				if (args[0].equals("/give")){
 					try {
 						int id = Integer.parseInt(args[1]);
-						this.currentBlock = Atlas.MAIN_ATLAS.getBlockType(id);
-						System.out.println(this.currentBlock);
+						String type = Atlas.MAIN_ATLAS.getBlockType(id);
+						if (type == null){
+							System.out.println("Unknown block id: "+id);
+						} else {
+							this.currentBlock = type;
+							System.out.println(this.currentBlock);
+						}
 					} catch (NumberFormatException ex){
 						System.out.println("Error");
 					}
@@ -108,81 +129,39 @@ public class MainApplication extends Application{
 					double y = Double.parseDouble(args[2]);
 					double z = Double.parseDouble(args[3]);
 					player.getCamera().setPosition(new Point3D(x, y, z));
+				} else if (args[0].equals("/stats")){
+					System.out.print(Metrics.dump());
 				} else if (args[0].equals("/save")){
 					manager.saveWorld();
 				} else if (args[0].equals("/delete")){
 					world.setSeed((int)System.currentTimeMillis());
 					System.out.println("Seed: "+world.getSeed());
 					manager.deleteSavedWorld();
-					manager.manage(Util.getChunkPos(player.getPosition()));
+					manager.manage(player.getPosition());
 				}
 			}
 		});
 		console.start();
 
 		// Chunk managing
-		player.setOnChunkPositionChanged(chunkPos -> {
-			manager.manage(chunkPos);
+		player.setOnChunkPositionChanged(pos -> {
+			manager.manage(pos);
 		});
 
 		// Ray-casting
 		ENGINE.setOnMousePressed(e -> {
-			Block block = null;
-
-			double stepX = Math.cos(player.getRx())*Math.cos(player.getRy()+Math.PI/2);
-			double stepY = -Math.sin(player.getRx());
-			double stepZ = Math.cos(player.getRx())*Math.sin(player.getRy()+Math.PI/2);
-
-			int lastX = 0;
-			int lastY = 0;
-			int lastZ = 0;
-
-			for (double i = 0; i <= 10; i += 0.01){
-				int lX = (int)(player.getX()+i*stepX);
-				int lY = (int)(player.getY()+i*stepY);
-				int lZ = (int)(player.getZ()+i*stepZ);
-				block = world.getBlockAt(lX, lY, lZ);
-				if (block == null || i == 0 || block.isLiquid()){
-					lastX = lX;
-					lastY = lY;
-					lastZ = lZ;
-				}
-				if (block != null && !block.isLiquid()) break;
-			}
-			if (block != null){
-				boolean chunkUpdate = false;
-				Block down = null; // The underneath liquid block
+			double dirX = Math.cos(player.getRx())*Math.cos(player.getRy()+Math.PI/2);
+			double dirY = -Math.sin(player.getRx());
+			double dirZ = Math.cos(player.getRx())*Math.sin(player.getRy()+Math.PI/2);
+
+			World.RayHit hit = world.rayCast(player.getX(), player.getY(), player.getZ(), dirX, dirY, dirZ, 10);
+			if (hit != null){
+				Block block = hit.getBlock();
+				// The changed blocks are culled again by the ChunkManager on the next frame
 				if (e.getButton() == MouseButton.PRIMARY){
 					world.removeBlockAt(block.getX(), block.getY(), block.getZ());
-					int chunkX = block.getX() / Chunk.CHUNK_SIZE;
-					int chunkY = block.getY() / Chunk.CHUNK_SIZE;
-					int chunkZ = block.getZ() / Chunk.CHUNK_SIZE;
-					chunkUpdate = true;
-					down = world.getBlockAt(block.getX(), block.getY()+1, block.getZ());
-				} else if (e.getButton() == MouseButton.SECONDARY && lastX >= 0 && lastY >= 0 && lastZ >= 0){
-					world.setBlockAt(lastX, lastY, lastZ, this.currentBlock);
-					int chunkX = lastX / Chunk.CHUNK_SIZE;
-					int chunkY = lastY / Chunk.CHUNK_SIZE;
-					int chunkZ = lastZ / Chunk.CHUNK_SIZE;
-					chunkUpdate = true;
-					down = world.getBlockAt(lastX, lastY+1, lastZ);
-				}
-				if (chunkUpdate){
-					if (down != null && down.isLiquid()){
-						down.removeMesh(); // Update liquid blocks in case the user placed a block on top of them
-					}
-
-					// TODO (maybe don't update the entire chunk)
-					for (int i = -1; i < 2; i++){
-						for (int j = -1; j < 2; j++){
-							for (int k = -1; k < 2; k++){
-								Chunk chunk = world.getChunkAt(block.getX()/Chunk.CHUNK_SIZE+i, block.getY()/Chunk.CHUNK_SIZE+k, block.getZ()/Chunk.CHUNK_SIZE+j);
-								if (chunk != null){
-									chunk.updateMesh();
-								}
-							}
-						}
-					}
+				} else if (e.getButton() == MouseButton.SECONDARY && hit.getPlaceX() >= 0 && hit.getPlaceY() >= 0 && hit.getPlaceZ() >= 0){
+					world.setBlockAt(hit.getPlaceX(), hit.getPlaceY(), hit.getPlaceZ(), this.currentBlock);
 				}
 			}
 		});
@@ -215,26 +194,36 @@ public class MainApplication extends Application{
 		ENGINE.setOnPreUpdate(gc -> {
 			console.runLastCommand();
 
-			for (Chunk chunk : world.getChunks()){
-				for (int i = 0; i < Chunk.CHUNK_SIZE; i++){
-					for (int j = 0; j < Chunk.CHUNK_SIZE; j++){
-						for (int k = 0; k < Chunk.CHUNK_SIZE; k++){
-							Block block = chunk.getBlockAt(i, j, k);
-							if (block != null){
-								block.update();
-							}
-						}
-					}
+			// The sky follows the time, the triangles are updated only when the sky light level changes
+			double intensity = this.time;
+			if (intensity != world.getSkyIntensity()){
+				if (world.setSkyIntensity(intensity)){
+					manager.applySkyLight();
 				}
+				this.backgroundColor = Color.hsb(this.backgroundColor.getHue(), this.backgroundColor.getSaturation(), world.getSkyIntensity());
+				ENGINE.setBackgroundColor(this.backgroundColor);
 			}
+
+			manager.update();
+			manager.updateVisibility(player.getFrustum());
 		});
 
 		ENGINE.setOnUpdate(gc -> {
 			gc.setFill(Color.BLACK);
 			gc.setTextAlign(TextAlignment.RIGHT);
 			gc.setFont(new Font("sans-serif", 11));
+			int triangles = 0;
+			int perBlockTriangles = 0;
+			for (Chunk chunk : world.getChunks()){
+				triangles += chunk.getTriangles();
+				perBlockTriangles += chunk.getPerBlockTriangles();
+			}
 			String text = "Projected: "+MeshVertex.getProjectedVerticesCount();
 			text += "\nView: "+MeshVertex.getViewVerticesCount();
+			text += "\nTriangles: "+triangles+" (per block: "+perBlockTriangles+")";
+			text += "\nFar terrain: "+manager.getLodTerrain().getTriangles()+" ("+manager.getLodTerrain().getTiles()+" tiles)";
+			text += "\nChunks: "+manager.getVisibleChunks()+" (culled: "+manager.getCulledChunks()+")";
+			text += "\nCulled: "+manager.getCulledBlocks()+" (last: "+manager.getLastCulledBlocks()+")";
 			text += "\n"+Util.formatTime(this.time, this.amTime);
 			gc.fillText(text, WIDTH*0.95, HEIGHT*0.1);
 
@@ -0,0 +1,78 @@
+package com.orangomango.blockworld.entity;
+
+/**
+ * View frustum of the player, used to skip whole chunks that can't be seen.
+ * The planes go through the camera position, a box is outside when it's completely behind one of them.
+ */
+public class Frustum{
+	private double tanX, tanY, distance;
+	private double x, y, z;
+	private double[][] planes = new double[5][3]; // Left, right, top, bottom and near, pointing inside
+
+	/**
+	 * @param fov the field of view of the camera
+	 * @param width the width of the view
+	 * @param height the height of the view
+	 * @param distance the maximum distance of a visible point
+	 */
+	public Frustum(double fov, int width, int height, double distance){
+		// The fov is used for both axes and widened by the aspect ratio, so the test never skips a visible chunk
+		this.tanY = Math.tan(fov/2);
+		this.tanX = this.tanY*Math.max(1, (double)width/height);
+		this.tanY *= Math.max(1, (double)height/width);
+		this.distance = distance;
+	}
+
+	public void update(double x, double y, double z, double rx, double ry){
+		this.x = x;
+		this.y = y;
+		this.z = z;
+
+		// Same axes used for the ray casting and the movement
+		double fx = -Math.cos(rx)*Math.sin(ry);
+		double fy = -Math.sin(rx);
+		double fz = Math.cos(rx)*Math.cos(ry);
+		double rightX = Math.cos(ry);
+		double rightZ = Math.sin(ry);
+		double upX = Math.sin(ry)*Math.sin(rx);
+		double upY = -Math.cos(rx);
+		double upZ = -Math.cos(ry)*Math.sin(rx);
+
+		setPlane(0, fx*this.tanX+rightX, fy*this.tanX, fz*this.tanX+rightZ);
+		setPlane(1, fx*this.tanX-rightX, fy*this.tanX, fz*this.tanX-rightZ);
+		setPlane(2, fx*this.tanY+upX, fy*this.tanY+upY, fz*this.tanY+upZ);
+		setPlane(3, fx*this.tanY-upX, fy*this.tanY-upY, fz*this.tanY-upZ);
+		setPlane(4, fx, fy, fz);
+	}
+
+	private void setPlane(int i, double nx, double ny, double nz){
+		this.planes[i][0] = nx;
+		this.planes[i][1] = ny;
+		this.planes[i][2] = nz;
+	}
+
+	/**
+	 * Check if an axis-aligned box is inside the frustum
+	 * @return false only if no point of the box can be seen
+	 */
+	public boolean isVisible(double minX, double minY, double minZ, double maxX, double maxY, double maxZ){
+		// Distance from the camera to the nearest point of the box
+		double dx = Math.max(Math.max(minX-this.x, this.x-maxX), 0);
+		double dy = Math.max(Math.max(minY-this.y, this.y-maxY), 0);
+		double dz = Math.max(Math.max(minZ-this.z, this.z-maxZ), 0);
+		if (dx*dx+dy*dy+dz*dz > this.distance*this.distance){
+			return false;
+		}
+
+		for (double[] plane : this.planes){
+			// Corner of the box that is the most inside the plane
+			double px = (plane[0] >= 0 ? maxX : minX)-this.x;
+			double py = (plane[1] >= 0 ? maxY : minY)-this.y;
+			double pz = (plane[2] >= 0 ? maxZ : minZ)-this.z;
+			if (plane[0]*px+plane[1]*py+plane[2]*pz < 0){
+				return false;
+			}
+		}
+		return true;
+	}
+}
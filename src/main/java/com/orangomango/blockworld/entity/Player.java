@@ -4,28 +4,45 @@ import javafx.geometry.Point3D;
 
 import java.util.function.Consumer;
 
-import static com.orangomango.blockworld.model.ChunkManager.RENDER_DISTANCE;
 import static com.orangomango.blockworld.model.Chunk.CHUNK_SIZE;
+import com.orangomango.blockworld.model.LodTerrain;
+import com.orangomango.blockworld.model.ChunkManager;
 import com.orangomango.blockworld.util.Util;
 import com.orangomango.rendering3d.model.Camera;
 
 public class Player{
+	private static final double FOV = Math.PI/2;
+	private static final double VIEW_DISTANCE = LodTerrain.DISTANCE*CHUNK_SIZE; // The far terrain is visible too
+
 	private Camera camera;
+	private Frustum frustum;
 	private Point3D lastChunkPos;
+	private int lastMinChunkY, lastMaxChunkY;
 
 	public Player(double x, double y, double z, int w, int h){
-		this.camera = new Camera(new Point3D(x, y, z), w, h, Math.PI/2, RENDER_DISTANCE*CHUNK_SIZE*1.25, 0.1);
+		this.camera = new Camera(new Point3D(x, y, z), w, h, FOV, VIEW_DISTANCE, 0.1);
+		this.frustum = new Frustum(FOV, w, h, VIEW_DISTANCE);
 		this.lastChunkPos = Util.getChunkPos(getPosition());
+		this.lastMinChunkY = ChunkManager.getMinChunkY(y);
+		this.lastMaxChunkY = ChunkManager.getMaxChunkY(y);
 	}
 
+	/**
+	 * Called with the position of the player when it moves to another chunk or when the
+	 * chunks loaded above and below it change (see ChunkManager.manage)
+	 */
 	public void setOnChunkPositionChanged(Consumer<Point3D> c){
 		this.camera.setOnPositionChanged(pos -> {
 			Point3D chunkPos = Util.getChunkPos(pos);
-			if (chunkPos.equals(this.lastChunkPos)){
+			int minChunkY = ChunkManager.getMinChunkY(pos.getY());
+			int maxChunkY = ChunkManager.getMaxChunkY(pos.getY());
+			if (chunkPos.equals(this.lastChunkPos) && minChunkY == this.lastMinChunkY && maxChunkY == this.lastMaxChunkY){
 				return; // The player stayed in the same chunk
 			}
 			this.lastChunkPos = chunkPos;
-			c.accept(chunkPos);
+			this.lastMinChunkY = minChunkY;
+			this.lastMaxChunkY = maxChunkY;
+			c.accept(pos);
 		});
 	}
 
@@ -34,6 +51,12 @@ public class Player{
 		return this.camera;
 	}
 
+	// The frustum is updated with the current position and rotation of the camera
+	public Frustum getFrustum(){
+		this.frustum.update(getX(), getY(), getZ(), getRx(), getRy());
+		return this.frustum;
+	}
+
 	public Point3D getPosition(){
 		return this.camera.getPosition();
 	}
@@ -0,0 +1,64 @@
+package com.orangomango.blockworld.metrics;
+
+import jdk.jfr.*;
+
+/**
+ * JFR events of the chunk lifecycle, recorded with -XX:StartFlightRecording.
+ * Usage: create the event, call begin(), do the work and then commit(x, y, z).
+ */
+@Category({"BlockWorld", "Chunk"})
+@StackTrace(false)
+public abstract class ChunkEvent extends Event{
+	@Label("Chunk X")
+	public int x;
+
+	@Label("Chunk Y")
+	public int y;
+
+	@Label("Chunk Z")
+	public int z;
+
+	public void commit(int x, int y, int z){
+		end();
+		if (shouldCommit()){
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			commit();
+		}
+	}
+
+	@Name("blockworld.ChunkGenerate")
+	@Label("Chunk Generate")
+	public static class Generate extends ChunkEvent{
+	}
+
+	@Name("blockworld.ChunkLoad")
+	@Label("Chunk Load")
+	@Description("Chunk read from the region files")
+	public static class Load extends ChunkEvent{
+		@Label("Found")
+		public boolean found;
+	}
+
+	@Name("blockworld.ChunkSave")
+	@Label("Chunk Save")
+	public static class Save extends ChunkEvent{
+	}
+
+	@Name("blockworld.ChunkMesh")
+	@Label("Chunk Mesh")
+	@Description("Face culling and mesh building of a chunk")
+	public static class Mesh extends ChunkEvent{
+		@Label("Culled Blocks")
+		public int culledBlocks;
+
+		@Label("Triangles")
+		public int triangles;
+	}
+
+	@Name("blockworld.ChunkUnload")
+	@Label("Chunk Unload")
+	public static class Unload extends ChunkEvent{
+	}
+}
@@ -0,0 +1,94 @@
+package com.orangomango.blockworld.metrics;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of the runtime metrics: timers, counters and gauges, identified by name.
+ * Timers and counters can be updated from any thread. Gauges are only read when the values are dumped.
+ */
+public class Metrics{
+	private static Map<String, Timer> timers = new ConcurrentHashMap<>();
+	private static Map<String, Counter> counters = new ConcurrentHashMap<>();
+	private static Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+	public static class Timer{
+		private LongAdder count = new LongAdder();
+		private LongAdder total = new LongAdder();
+		private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		/**
+		 * @param time the duration in nanoseconds
+		 */
+		public void record(long time){
+			this.count.increment();
+			this.total.add(time);
+			this.max.accumulate(time);
+		}
+
+		public long getCount(){
+			return this.count.sum();
+		}
+
+		public long getTotal(){
+			return this.total.sum();
+		}
+
+		public long getMax(){
+			return this.max.get();
+		}
+
+		@Override
+		public String toString(){
+			long count = getCount();
+			return String.format("count=%d avg=%.3fms max=%.3fms total=%.1fms", count, count == 0 ? 0 : getTotal()/1_000_000.0/count, getMax()/1_000_000.0, getTotal()/1_000_000.0);
+		}
+	}
+
+	public static class Counter{
+		private LongAdder value = new LongAdder();
+
+		public void increment(){
+			this.value.increment();
+		}
+
+		public void add(long amount){
+			this.value.add(amount);
+		}
+
+		public long get(){
+			return this.value.sum();
+		}
+
+		@Override
+		public String toString(){
+			return String.valueOf(get());
+		}
+	}
+
+	public static Timer timer(String name){
+		return timers.computeIfAbsent(name, n -> new Timer());
+	}
+
+	public static Counter counter(String name){
+		return counters.computeIfAbsent(name, n -> new Counter());
+	}
+
+	// A gauge with the same name replaces the old one
+	public static void gauge(String name, LongSupplier value){
+		gauges.put(name, value);
+	}
+
+	// All the current values, one per line and sorted by name
+	public static String dump(){
+		Map<String, String> values = new TreeMap<>();
+		timers.forEach((name, timer) -> values.put(name, timer.toString()));
+		counters.forEach((name, counter) -> values.put(name, counter.toString()));
+		gauges.forEach((name, gauge) -> values.put(name, String.valueOf(gauge.getAsLong())));
+		StringBuilder builder = new StringBuilder();
+		values.forEach((name, value) -> builder.append(name).append(": ").append(value).append("\n"));
+		return builder.toString();
+	}
+}
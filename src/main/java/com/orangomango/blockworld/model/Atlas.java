@@ -7,10 +7,19 @@ import java.io.*;
 import java.util.*;
 import org.json.JSONObject;
 
+/**
+ * Block types read from the atlas json. The json is compiled at load time into arrays indexed by the block id,
+ * id 0 is air.
+ */
 public class Atlas{
-	private JSONObject json;
-	private Map<Integer, String> blockIds = new HashMap<>();
-	private Map<String, BlockMesh> blocks = new HashMap<>();
+	private final String[] types;
+	private final Map<String, Integer> blockIds = new HashMap<>();
+	private final BlockMesh[] meshes;
+	private final int[] hidePatterns;
+	private final int[] lightEmissions;
+	private final BitSet transparent = new BitSet();
+	private final BitSet liquid = new BitSet();
+	private final BitSet lightOpaque = new BitSet();
 
 	public static Atlas MAIN_ATLAS;
 
@@ -19,21 +28,40 @@ public class Atlas{
 	}
 
 	public Atlas(String name){
+		JSONObject json = null;
 		try {
-			File file = new File(Atlas.class.getResource(name).toURI());
-			BufferedReader reader = new BufferedReader(new FileReader(file));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(Atlas.class.getResourceAsStream(name)));
 			StringBuilder builder = new StringBuilder();
 			reader.lines().forEach(line -> builder.append(line).append("\n"));
 			reader.close();
-			this.json = new JSONObject(builder.toString());
+			json = new JSONObject(builder.toString());
 		} catch (Exception ex){
 			ex.printStackTrace();
 		}
 
-		for (String blockType : this.json.getJSONObject("blocks").keySet()){
-			this.blockIds.put(getBlockId(blockType), blockType);
-			BlockMesh block = new BlockMesh(this.json.getJSONObject("blocks").getJSONObject(blockType).getString("mesh"), this.json.getJSONObject("blocks").getJSONObject(blockType).getJSONObject("textures"));
-			this.blocks.put(blockType, block);
+		JSONObject blocks = json.getJSONObject("blocks");
+		int maxId = 0;
+		for (String blockType : blocks.keySet()){
+			int id = blocks.getJSONObject(blockType).getInt("id");
+			this.blockIds.put(blockType, id);
+			maxId = Math.max(maxId, id);
+		}
+
+		this.types = new String[maxId+1];
+		this.meshes = new BlockMesh[maxId+1];
+		this.hidePatterns = new int[maxId+1];
+		this.lightEmissions = new int[maxId+1];
+		for (String blockType : blocks.keySet()){
+			JSONObject block = blocks.getJSONObject(blockType);
+			int id = block.getInt("id");
+			this.types[id] = blockType;
+			this.meshes[id] = new BlockMesh(block.getString("mesh"), block.getJSONObject("textures"));
+			this.hidePatterns[id] = block.getInt("hidePattern");
+			this.lightEmissions[id] = block.optInt("light", 0);
+			this.transparent.set(id, block.getBoolean("transparent"));
+			this.liquid.set(id, block.getBoolean("liquid"));
+			// Full blocks that are not transparent stop the light
+			this.lightOpaque.set(id, !block.getBoolean("transparent") && this.meshes[id].isCube());
 		}
 
 		/*BlockMesh blockMesh = getBlockMesh("debug");
@@ -49,34 +77,61 @@ public class Atlas{
 	}
 
 	public int getMaxId(){
-		return this.blockIds.keySet().stream().mapToInt(i -> i.intValue()).max().getAsInt();
+		return this.types.length-1;
 	}
 	
 	public int getBlockId(String blockType){
-		return this.json.getJSONObject("blocks").getJSONObject(blockType).getInt("id");
+		Integer id = this.blockIds.get(blockType);
+		if (id == null) throw new IllegalArgumentException("Unknown block type: "+blockType);
+		return id;
 	}
 
 	public String getBlockType(int id){
-		return this.blockIds.get(id);
+		return id > 0 && id < this.types.length ? this.types[id] : null;
 	}
 	
 	public boolean isTransparent(String blockType){
-		return this.json.getJSONObject("blocks").getJSONObject(blockType).getBoolean("transparent");
+		return isTransparent(getBlockId(blockType));
+	}
+
+	public boolean isTransparent(int id){
+		return this.transparent.get(id);
 	}
 	
 	public boolean isSprite(String blockType){
-		return false; //this.json.getJSONObject("blocks").getJSONObject(blockType).optBoolean("sprite"); // TODO
+		return false; // TODO
 	}
 	
 	public boolean isLiquid(String blockType){
-		return this.json.getJSONObject("blocks").getJSONObject(blockType).getBoolean("liquid");
+		return isLiquid(getBlockId(blockType));
+	}
+
+	public boolean isLiquid(int id){
+		return this.liquid.get(id);
 	}
 
 	public int getHidePattern(String blockType){
-		return this.json.getJSONObject("blocks").getJSONObject(blockType).getInt("hidePattern");
+		return getHidePattern(getBlockId(blockType));
+	}
+
+	public int getHidePattern(int id){
+		return this.hidePatterns[id];
+	}
+
+	// Block light emitted by the block, 0 for most blocks
+	public int getLightEmission(int id){
+		return this.lightEmissions[id];
+	}
+
+	public boolean isLightOpaque(int id){
+		return this.lightOpaque.get(id);
 	}
 
 	public BlockMesh getBlockMesh(String blockType){
-		return this.blocks.get(blockType);
+		return getBlockMesh(getBlockId(blockType));
+	}
+
+	public BlockMesh getBlockMesh(int id){
+		return this.meshes[id];
 	}
-}
\ No newline at end of file
+}
@@ -1,146 +1,63 @@
 package com.orangomango.blockworld.model;
 
-import javafx.geometry.Point3D;
-import javafx.geometry.Point2D;
-
-import java.util.List;
-
-import com.orangomango.rendering3d.model.Mesh;
-
 public class Block{
 	public static final double LIQUID_OFFSET = 0.2;
 	public static final int MAX_LIGHT_INTENSITY = 15;
 
 	private int x, y, z;
 	private World world;
-	private Mesh mesh;
-	private String type;
-	private int light = MAX_LIGHT_INTENSITY;
-	private BlockMesh blockMesh;
-	private double yOffset;
+	private int id;
 
-	public Block(Chunk chunk, int x, int y, int z, String type){
+	public Block(Chunk chunk, int x, int y, int z, int id){
 		this.world = chunk.getWorld();
 		this.x = x+chunk.getX()*Chunk.CHUNK_SIZE;
 		this.y = y+chunk.getY()*Chunk.CHUNK_SIZE;
 		this.z = z+chunk.getZ()*Chunk.CHUNK_SIZE;
-		this.type = type;
-		this.blockMesh = Atlas.MAIN_ATLAS.getBlockMesh(this.type);
+		this.id = id;
 	}
 
-	public Block(World world, int gx, int gy, int gz, String type){
+	public Block(Chunk chunk, int x, int y, int z, String type){
+		this(chunk, x, y, z, Atlas.MAIN_ATLAS.getBlockId(type));
+	}
+
+	public Block(World world, int gx, int gy, int gz, int id){
 		this.world = world;
 		this.x = gx;
 		this.y = gy;
 		this.z = gz;
-		this.type = type;
-		this.blockMesh = Atlas.MAIN_ATLAS.getBlockMesh(this.type);
+		this.id = id;
 	}
 
-	public void setLight(int intensity){
-		this.light = intensity;
-	}
-
-	private void hideFace(int name){
-		List<Integer> idx = this.blockMesh.getCullingIdx().getOrDefault(name, null);
-		if (idx != null){
-			for (int n : idx){
-				this.mesh.addHiddenFace(n);
-			}
-		}
-	}
-
-	private static int evalHidePattern(String type, int faceName){
-		return Atlas.MAIN_ATLAS.getHidePattern(type) & faceName;
-	}
-
-	public void setupFaces(){
-		if (this.mesh == null) return;
-		this.mesh.clearHiddenFaces();
-		Block block = this.world.getBlockAt(this.x+1, this.y, this.z);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_LEFT) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_RIGHT) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_LEFT) != 0))){
-			hideFace(BlockMesh.FACE_RIGHT);
-		}
-		block = this.world.getBlockAt(this.x, this.y+1, this.z);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_TOP) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_DOWN) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_TOP) != 0))){
-			hideFace(BlockMesh.FACE_DOWN);
-		}
-		block = this.world.getBlockAt(this.x, this.y, this.z+1);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_FRONT) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_BACK) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_FRONT) != 0))){
-			hideFace(BlockMesh.FACE_BACK);
-		}
-		block = this.world.getBlockAt(this.x-1, this.y, this.z);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_RIGHT) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_LEFT) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_RIGHT) != 0))){
-			hideFace(BlockMesh.FACE_LEFT);
-		}
-		block = this.world.getBlockAt(this.x, this.y-1, this.z);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_DOWN) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_TOP) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_DOWN) != 0))){
-			hideFace(BlockMesh.FACE_TOP);
-		}
-		block = this.world.getBlockAt(this.x, this.y, this.z-1);
-		if (block != null && (evalHidePattern(block.getType(), BlockMesh.FACE_BACK) == 0 || (evalHidePattern(this.getType(), BlockMesh.FACE_FRONT) != 0 && evalHidePattern(block.getType(), BlockMesh.FACE_BACK) != 0))){
-			hideFace(BlockMesh.FACE_FRONT);
-		}
+	public Block(World world, int gx, int gy, int gz, String type){
+		this(world, gx, gy, gz, Atlas.MAIN_ATLAS.getBlockId(type));
 	}
 
-	public Mesh getMesh(){
-		if (this.mesh != null) return this.mesh;
-
-		Block top = this.world.getBlockAt(this.x, this.y-1, this.z);
-		if ((top == null || !top.isLiquid()) && isLiquid()){
-			this.yOffset = LIQUID_OFFSET;
-		}
-
-		Point3D[] vertices = this.blockMesh.getVertices();
-		int[][] faces = this.blockMesh.getFacesPoints();
-		Point3D[] blockVertices = new Point3D[vertices.length];
-		int[][] blockFaces = new int[faces.length][3];
-
-		System.arraycopy(vertices, 0, blockVertices, 0, vertices.length);
-		System.arraycopy(faces, 0, blockFaces, 0, faces.length);
-
-		if (this.yOffset != 0){
-			for (int i = 0; i < blockVertices.length; i++){
-				Point3D v = blockVertices[i];
-				if (v.getY() == 0){
-					blockVertices[i] = new Point3D(v.getX(), this.yOffset, v.getZ());
-				}
-			}
-		}
-
-		this.mesh = new Mesh(blockVertices, blockFaces, null, this.blockMesh.getImages(), this.blockMesh.getImageIndices(), this.blockMesh.getTex(), this.blockMesh.getFacesTex());
-		this.mesh.setSkipCondition(cam -> {
-			Point3D pos = new Point3D(this.x, this.y, this.z);
-			return pos.distance(cam.getPosition()) > ChunkManager.RENDER_DISTANCE*Chunk.CHUNK_SIZE;
-		});
-
-		this.mesh.translate(this.x, this.y, this.z);
-		this.mesh.build();
-		this.mesh.setTransparentProcessing(isTransparent());
-		this.mesh.setShowAllFaces(isTransparent());
-		return this.mesh;
+	// Light computed by the LightEngine, from 0 to MAX_LIGHT_INTENSITY
+	public int getLight(){
+		return (int)Math.round(LightEngine.getIntensity(this.world.getLightAt(this.x, this.y, this.z), this.world.getSkyLight())*MAX_LIGHT_INTENSITY);
 	}
 
-	// Called once every frame
-	public void update(){
-		// Set light
-		if (this.mesh != null){
-			for (int i = 0; i < this.mesh.getTriangles().length; i++){
-				this.mesh.getTriangles()[i].setLight((double)this.light/MAX_LIGHT_INTENSITY);
-			}
-		}
+	private static int evalHidePattern(int id, int faceName){
+		return Atlas.MAIN_ATLAS.getHidePattern(id) & faceName;
 	}
 
-	public void removeMesh(){
-		this.mesh = null;
+	/**
+	 * Check if a face of a block is hidden by the block next to it
+	 * @param id the block id
+	 * @param neighbour the id of the block touching the face (0 for air)
+	 * @param face the face of the block
+	 * @param neighbourFace the face of the neighbour touching the block
+	 */
+	public static boolean isFaceHidden(int id, int neighbour, int face, int neighbourFace){
+		return neighbour != 0 && (evalHidePattern(neighbour, neighbourFace) == 0 || (evalHidePattern(id, face) != 0 && evalHidePattern(neighbour, neighbourFace) != 0));
 	}
 
 	public boolean isTransparent(){
-		return Atlas.MAIN_ATLAS.isTransparent(this.type);
+		return Atlas.MAIN_ATLAS.isTransparent(this.id);
 	}
 
 	public boolean isLiquid(){
-		return Atlas.MAIN_ATLAS.isLiquid(this.type);
+		return Atlas.MAIN_ATLAS.isLiquid(this.id);
 	}
 
 	public int getX(){
@@ -156,10 +73,10 @@ public class Block{
 	}
 
 	public String getType(){
-		return this.type;
+		return Atlas.MAIN_ATLAS.getBlockType(this.id);
 	}
 
 	public int getId(){
-		return Atlas.MAIN_ATLAS.getBlockId(this.type);
+		return this.id;
 	}
 }
\ No newline at end of file
@@ -119,13 +119,16 @@ public class BlockMesh{
 
 	private JSONObject textures;
 	private JSONObject meshJson;
-	private Image[] images;
+	private String[] imagePaths;
+	private Image[] images; // Loaded the first time a mesh is built, see getImages()
 	private int[] imageIndices;
+	private int[] faceImageIndices = new int[6]; // Image of each cube face, indexed by the bit of the face (see getFaceImageIndex)
 	private Point3D[] vertices;
 	private Point2D[] tex;
 	private int[][] facesPoints;
 	private int[][] facesTex;
 	private Map<Integer, List<Integer>> cullingIdx = new HashMap<>();
+	private boolean cube;
 
 	// Hide pattern
 	public static final int FACE_FRONT = 32;
@@ -138,15 +141,14 @@ public class BlockMesh{
 	public BlockMesh(String meshFile, JSONObject textures){
 		this.textures = textures;
 
-		List<Image> img = new ArrayList<>();
+		List<String> paths = new ArrayList<>();
 		for (Object o : this.textures.getJSONArray("images")){
-			Image image = new Image(getClass().getResourceAsStream((String)o));
-			img.add(image);
+			paths.add((String)o);
 		}
-		this.images = img.toArray(new Image[img.size()]);
+		this.imagePaths = paths.toArray(new String[paths.size()]);
 
 		try {
-			BufferedReader reader = new BufferedReader(new FileReader(new File(getClass().getResource(meshFile).toURI())));
+			BufferedReader reader = new BufferedReader(new InputStreamReader(getClass().getResourceAsStream(meshFile)));
 			StringBuilder builder = new StringBuilder();
 			reader.lines().forEach(builder::append);
 			reader.close();
@@ -155,13 +157,20 @@ public class BlockMesh{
 			ex.printStackTrace();
 		}
 
-		Element element = mergeElements(buildElements());
+		List<Element> elements = buildElements();
+		this.cube = elements.size() == 1 && isCube(this.meshJson.getJSONArray("elements").getJSONObject(0));
+		Element element = mergeElements(elements);
 		this.vertices = element.vertices.toArray(new Point3D[element.vertices.size()]);
 		this.tex = element.tex.toArray(new Point2D[element.tex.size()]);
 		this.facesPoints = element.buildFacesPoints();
 		this.facesTex = element.buildFacesTextures();
 		this.imageIndices = element.buildImageIndices();
 		this.cullingIdx = element.buildCullingIdx();
+
+		String[] faceNames = {"top", "down", "left", "back", "right", "front"}; // FACE_TOP to FACE_FRONT
+		for (int i = 0; i < faceNames.length; i++){
+			this.faceImageIndices[i] = this.textures.getJSONObject("config").optInt(faceNames[i], -1);
+		}
 	}
 
 	private Element mergeElements(List<Element> elements){
@@ -170,6 +179,24 @@ public class BlockMesh{
 		return e;
 	}
 
+	// A full block with the whole texture on every face can be merged with its neighbours
+	private static boolean isCube(JSONObject json){
+		for (int i = 0; i < 3; i++){
+			if (json.getJSONArray("from").getDouble(i) != 0 || json.getJSONArray("to").getDouble(i) != 16) return false;
+		}
+		JSONObject faces = json.getJSONObject("faces");
+		if (faces.keySet().size() != 6) return false;
+		for (String f : faces.keySet()){
+			JSONObject data = faces.getJSONObject(f);
+			if (!data.getBoolean("culling")) return false;
+			int[] uv = {0, 0, 16, 16};
+			for (int i = 0; i < 4; i++){
+				if (data.getJSONArray("uv").getInt(i) != uv[i]) return false;
+			}
+		}
+		return true;
+	}
+
 	private List<Element> buildElements(){
 		List<Element> output = new ArrayList<>();
 		for (Object e : this.meshJson.getJSONArray("elements")){
@@ -240,7 +267,15 @@ public class BlockMesh{
 		return element;
 	}
 
-	public Image[] getImages(){
+	// Images need the JavaFX toolkit, so they are only loaded when a renderer builds the first mesh
+	public synchronized Image[] getImages(){
+		if (this.images == null){
+			Image[] images = new Image[this.imagePaths.length];
+			for (int i = 0; i < images.length; i++){
+				images[i] = new Image(getClass().getResourceAsStream(this.imagePaths[i]));
+			}
+			this.images = images;
+		}
 		return this.images;
 	}
 
@@ -267,4 +302,13 @@ public class BlockMesh{
 	public Map<Integer, List<Integer>> getCullingIdx(){
 		return this.cullingIdx;
 	}
+
+	public boolean isCube(){
+		return this.cube;
+	}
+
+	// Index in getImages() of the image of a cube face, -1 if the face has no image
+	public int getFaceImageIndex(int faceName){
+		return this.faceImageIndices[Integer.numberOfTrailingZeros(faceName)];
+	}
 }
\ No newline at end of file
@@ -0,0 +1,101 @@
+package com.orangomango.blockworld.model;
+
+import java.util.Arrays;
+
+/**
+ * Block ids of a chunk stored as indices into a palette.
+ * Indices are packed into longs using as few bits as the palette size needs,
+ * a chunk made only of air does not allocate any data.
+ */
+public class BlockStorage{
+	private int size;
+	private int[] palette = new int[]{0};
+	private int paletteSize = 1;
+	private int bits;
+	private long[] data;
+
+	public BlockStorage(int size){
+		this.size = size;
+	}
+
+	public int get(int index){
+		if (this.bits == 0) return this.palette[0];
+		return this.palette[getPaletteIndex(index)];
+	}
+
+	public void set(int index, int id){
+		int paletteIndex = findPaletteIndex(id);
+		if (paletteIndex == -1){
+			if (this.paletteSize == this.palette.length){
+				this.palette = Arrays.copyOf(this.palette, this.palette.length*2);
+			}
+			paletteIndex = this.paletteSize;
+			this.palette[this.paletteSize++] = id;
+			int neededBits = 32-Integer.numberOfLeadingZeros(this.paletteSize-1);
+			if (neededBits > this.bits){
+				resize(neededBits);
+			}
+		}
+		if (this.bits != 0){
+			setPaletteIndex(index, paletteIndex);
+		}
+	}
+
+	public boolean isEmpty(){
+		if (this.bits == 0) return this.palette[0] == 0;
+		for (int i = 0; i < this.size; i++){
+			if (get(i) != 0) return false;
+		}
+		return true;
+	}
+
+	public int getBitsPerEntry(){
+		return this.bits;
+	}
+
+	public int getPaletteSize(){
+		return this.paletteSize;
+	}
+
+	// Approximate heap usage of the packed data and the palette
+	public long getMemoryUsage(){
+		return 16+this.palette.length*4L+(this.data == null ? 0 : 16+this.data.length*8L);
+	}
+
+	private void resize(int newBits){
+		long[] oldData = this.data;
+		int oldBits = this.bits;
+		this.bits = newBits;
+		this.data = new long[(this.size+64/newBits-1)/(64/newBits)];
+		if (oldBits != 0){
+			for (int i = 0; i < this.size; i++){
+				setPaletteIndex(i, getPaletteIndex(oldData, oldBits, i));
+			}
+		}
+	}
+
+	private int findPaletteIndex(int id){
+		for (int i = 0; i < this.paletteSize; i++){
+			if (this.palette[i] == id) return i;
+		}
+		return -1;
+	}
+
+	private int getPaletteIndex(int index){
+		return getPaletteIndex(this.data, this.bits, index);
+	}
+
+	private static int getPaletteIndex(long[] data, int bits, int index){
+		int perLong = 64/bits;
+		int shift = (index % perLong)*bits;
+		return (int)((data[index/perLong] >>> shift) & ((1L << bits)-1));
+	}
+
+	private void setPaletteIndex(int index, int value){
+		int perLong = 64/this.bits;
+		int shift = (index % perLong)*this.bits;
+		long mask = ((1L << this.bits)-1) << shift;
+		int i = index/perLong;
+		this.data[i] = (this.data[i] & ~mask) | ((long)value << shift);
+	}
+}
@@ -3,20 +3,34 @@ package com.orangomango.blockworld.model;
 import java.util.*;
 
 import com.orangomango.rendering3d.model.Mesh;
-import com.orangomango.blockworld.util.PerlinNoise;
-import static com.orangomango.blockworld.MainApplication.ENGINE;
+import com.orangomango.blockworld.metrics.*;
 
 public class Chunk{
-	public static final int CHUNK_SIZE = 4;
-	private static final int HEIGHT_LIMIT = 2;
-	private static final int WATER_HEIGHT = HEIGHT_LIMIT*CHUNK_SIZE+9;
+	public static final int CHUNK_SIZE = readChunkSize(); // -Dblockworld.chunkSize=16
+	public static final boolean COLUMNS = Boolean.getBoolean("blockworld.columns"); // Load whole columns of chunks, see ChunkManager
+	public static final int COLUMN_HEIGHT = 32; // Blocks loaded in each column when COLUMNS is set
+	static final int HEIGHT_LIMIT = 8; // Blocks above this y are always air
+	static final int WATER_HEIGHT = HEIGHT_LIMIT+9;
+	private static final Metrics.Timer CULL_TIMER = Metrics.timer("chunk.cull");
+	private static final Metrics.Timer MESH_TIMER = Metrics.timer("chunk.mesh");
 
 	private World world;
 	private ChunkPosition position;
-	private Block[][][] blocks = new Block[CHUNK_SIZE][CHUNK_SIZE][CHUNK_SIZE];
+	private BlockStorage storage = new BlockStorage(CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE);
+	private Map<Integer, Block> blocks = new HashMap<>(); // Created only when a caller needs the Block object
 	private List<Mesh> meshgroup;
-
-	public static List<Block> pendingBlocks = new ArrayList<>(); // pendingBlocks cannot contain blocks with special settings (like water's yOffset)
+	private int triangles, perBlockTriangles;
+	private byte[] faces; // Visible faces of each block, see ChunkMesher
+	private boolean dirty = true;
+	private boolean modified; // Changed since it was saved or loaded, see ChunkManager
+	private int dirtyBorders;
+	private BitSet dirtyBlocks = new BitSet(); // Blocks changed since the last cull, see markBlockDirty
+	private boolean lightDirty;
+	private int version; // Incremented when a block or the light changes, see ChunkMesher.Borders
+	private boolean visible = true; // Set once per frame by the ChunkManager
+	private byte[] light = new byte[CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE]; // Sky light (high nibble) and block light (low nibble), see LightEngine
+	private List<byte[]> meshLights; // Packed light of each triangle of each mesh
+	private List<Block> overflowBlocks = new ArrayList<>(); // Blocks generated outside of this chunk
 
 	public static class ChunkPosition{
 		private int x, y, z;
@@ -41,7 +55,7 @@ public class Chunk{
 
 		@Override
 		public int hashCode(){
-			return Objects.hash(Integer.valueOf(this.x), Integer.valueOf(this.y), Integer.valueOf(this.z));
+			return Long.hashCode(ChunkMap.pack(this.x, this.y, this.z));
 		}
 
 		@Override
@@ -57,26 +71,22 @@ public class Chunk{
 		this.world = world;
 		this.position = position;
 
-		PerlinNoise noise = new PerlinNoise(world.getSeed());
-		Random random = world.getRandom();
-		float frequency = 0.1575f;
-		float biomeFreq = 0.05f;
+		Random random = world.getChunkRandom(getX(), getY(), getZ());
 
 		// World generation
-		for (int i = 0; i < CHUNK_SIZE; i++){ // x
-			for (int j = 0; j < CHUNK_SIZE; j++){ // y
-				for (int k = 0; k < CHUNK_SIZE; k++){ // z
-					if (getY() < HEIGHT_LIMIT){
-						setBlock(null, i, j, k);
-					} else {
-						float n = (noise.noise((i+getX()*CHUNK_SIZE)*frequency, 0, (k+getZ()*CHUNK_SIZE)*frequency)+1)/2;
-						float b = (noise.noise((i+getX()*CHUNK_SIZE)*biomeFreq, 0, (k+getZ()*CHUNK_SIZE)*biomeFreq)+1)/2;
-						int h = Math.round(n*(16-1))+CHUNK_SIZE*HEIGHT_LIMIT; // air column
-						if (world.isSuperFlat()) h = CHUNK_SIZE*HEIGHT_LIMIT+1;
+		if ((getY()+1)*CHUNK_SIZE > HEIGHT_LIMIT){
+			ColumnCache.Column column = world.getColumns().get(getX(), getZ());
+			int sand = Atlas.MAIN_ATLAS.getBlockId("sand");
+			int dirt = Atlas.MAIN_ATLAS.getBlockId("dirt");
+			int stone = Atlas.MAIN_ATLAS.getBlockId("stone");
+			for (int i = 0; i < CHUNK_SIZE; i++){ // x
+				for (int j = 0; j < CHUNK_SIZE; j++){ // y
+					for (int k = 0; k < CHUNK_SIZE; k++){ // z
+						int h = column.getHeight(i, k);
 						int pos = getY()*CHUNK_SIZE+j;
 						if (pos >= h){
-							String biome = b <= 0.4 || (pos > WATER_HEIGHT && random.nextInt(100) < 35) ? "sand" : (pos == h && pos <= WATER_HEIGHT ? "grass" : "dirt");
-							setBlock(new Block(this, i, j, k, pos > h+3 ? "stone" : biome), i, j, k);
+							int biome = column.getBiome(i, k) <= 0.4 || (pos > WATER_HEIGHT && random.nextInt(100) < 35) ? sand : (pos == h ? column.getSurface(i, k) : dirt);
+							generateBlock(pos > h+3 ? stone : biome, i, j, k);
 						}
 					}
 				}
@@ -88,43 +98,43 @@ public class Chunk{
 			for (int j = 0; j < CHUNK_SIZE; j++){ // z
 				int h = 0;
 				for (int k = 0; k < CHUNK_SIZE; k++){ // y
-					if (this.blocks[i][k][j] == null) h++;
+					if (getBlockId(i, k, j) == 0) h++;
 					else break;
 				}
 				if (h > 0 && h < CHUNK_SIZE && h-1+getY()*CHUNK_SIZE < WATER_HEIGHT){
 					if (random.nextInt(1000) < 12){
-						if (this.blocks[i][h][j].getType().equals("grass")){
+						if (getBlockId(i, h, j) == Atlas.MAIN_ATLAS.getBlockId("grass")){
 							int treeHeight = 5;
 							for (int k = 0; k < treeHeight; k++){
-								setBlock(new Block(this, i, h-1-k, j, "wood_log"), i, h-1-k, j);
+								generateBlock("wood_log", i, h-1-k, j);
 							}
 							// 5x5
 							for (int kx = i-2; kx < i+3; kx++){
 								for (int ky = j-2; ky < j+3; ky++){
 									if (kx == i && ky == j) continue;
-									setBlock(new Block(this, kx, h-1-(treeHeight-2), ky, "leaves"), kx, h-1-(treeHeight-2), ky);
+									generateBlock("leaves", kx, h-1-(treeHeight-2), ky);
 								}
 							}
 							// 3x3
 							for (int kx = i-1; kx < i+2; kx++){
 								for (int ky = j-1; ky < j+2; ky++){
 									if (kx == i && ky == j) continue;
-									setBlock(new Block(this, kx, h-1-(treeHeight-1), ky, "leaves"), kx, h-1-(treeHeight-1), ky);
+									generateBlock("leaves", kx, h-1-(treeHeight-1), ky);
 								}
 							}
-							setBlock(new Block(this, i, h-1-treeHeight, j, "leaves"), i, h-1-treeHeight, j);
-						} else if (this.blocks[i][h][j].getType().equals("sand")){
+							generateBlock("leaves", i, h-1-treeHeight, j);
+						} else if (getBlockId(i, h, j) == Atlas.MAIN_ATLAS.getBlockId("sand")){
 							int cactusHeight = 3;
 							for (int k = 0; k < cactusHeight; k++){
-								setBlock(new Block(this, i, h-1-k, j, "cactus"), i, h-1-k, j);
+								generateBlock("cactus", i, h-1-k, j);
 							}
 						}
 					} else if (random.nextInt(1000) < 16){
 						String flowerType = "flower_"+(random.nextBoolean() ? "red" : "yellow");
-						if (this.blocks[i][h][j].getType().equals("sand")){
+						if (getBlockId(i, h, j) == Atlas.MAIN_ATLAS.getBlockId("sand")){
 							flowerType = "bush";
 						}
-						setBlock(new Block(this, i, h-1, j, flowerType), i, h-1, j);
+						generateBlock(flowerType, i, h-1, j);
 					}
 				}
 			}
@@ -134,15 +144,15 @@ public class Chunk{
 		for (int i = 0; i < CHUNK_SIZE; i++){ // x
 			for (int j = 0; j < CHUNK_SIZE; j++){ // z
 				for (int k = 0; k < CHUNK_SIZE; k++){ // y
-					if (this.blocks[i][k][j] == null && k+getY()*CHUNK_SIZE >= WATER_HEIGHT){
-						Block waterBlock = new Block(this, i, k, j, "water");
-						setBlock(waterBlock, i, k, j);
+					if (getBlockId(i, k, j) == 0 && k+getY()*CHUNK_SIZE >= WATER_HEIGHT){
+						generateBlock("water", i, k, j);
 					}
 				}
 			}
 		}
 
-		buildPendingBlocks();
+		// Generated chunks are saved once, generating them again would place their overflow blocks again
+		this.modified = true;
 	}
 
 	public Chunk(World world, ChunkPosition position, int[][][] input){
@@ -153,91 +163,322 @@ public class Chunk{
 			for (int j = 0; j < CHUNK_SIZE; j++){ // y
 				for (int k = 0; k < CHUNK_SIZE; k++){ // z
 					int id = input[i][j][k];
-					if (id == 0){
-						setBlock(null, i, j, k);
-					} else {
-						setBlock(new Block(this, i, j, k, Atlas.MAIN_ATLAS.getBlockType(id)), i, j, k);
+					if (id != 0){
+						this.storage.set(getIndex(i, j, k), id);
 					}
 				}
 			}
 		}
-		
-		buildPendingBlocks();
 	}
 
-	private void buildPendingBlocks(){
-		// Build pending blocks generated from other chunks
-		Iterator<Block> iterator = pendingBlocks.iterator();
-		while (iterator.hasNext()){
-			Block block = iterator.next();
-			if (containsBlock(block.getX()-getX()*CHUNK_SIZE, block.getY()-getY()*CHUNK_SIZE, block.getZ()-getZ()*CHUNK_SIZE)){
-				setBlock(block, block.getX()-getX()*CHUNK_SIZE, block.getY()-getY()*CHUNK_SIZE, block.getZ()-getZ()*CHUNK_SIZE);
-				iterator.remove();
-			}
+	// The blocks of a chunk that was unloaded, see ChunkCache
+	public Chunk(World world, ChunkPosition position, BlockStorage storage){
+		this.world = world;
+		this.position = position;
+		this.storage = storage;
+	}
+
+	/**
+	 * Build pending blocks generated from other chunks
+	 * @return the entries that were taken from the pending blocks, see PendingBlocks
+	 */
+	public int[] buildPendingBlocks(){
+		int[] output = this.world.getPendingBlocks().take(getX(), getY(), getZ());
+		for (int entry : output){
+			mergeBlock(PendingBlocks.getIndex(entry), PendingBlocks.getId(entry));
+		}
+		return output;
+	}
+
+	/**
+	 * Place a block generated by another chunk. The block with the highest id wins,
+	 * so the result does not depend on the order the chunks were generated in.
+	 * @return true if the block was placed
+	 */
+	public boolean mergeBlock(int id, int x, int y, int z){
+		return containsBlock(x, y, z) && mergeBlock(getIndex(x, y, z), id);
+	}
+
+	private boolean mergeBlock(int index, int id){
+		if (this.storage.get(index) >= id) return false;
+		this.storage.set(index, id);
+		this.blocks.remove(index);
+		this.modified = true;
+		this.version++;
+		return true;
+	}
+
+	// Returns the blocks generated outside of this chunk and forgets them
+	public List<Block> takeOverflowBlocks(){
+		List<Block> output = this.overflowBlocks;
+		this.overflowBlocks = new ArrayList<>();
+		return output;
+	}
+
+	private void generateBlock(String type, int x, int y, int z){
+		generateBlock(Atlas.MAIN_ATLAS.getBlockId(type), x, y, z);
+	}
+
+	private void generateBlock(int id, int x, int y, int z){
+		if (containsBlock(x, y, z)){
+			this.storage.set(getIndex(x, y, z), id);
+		} else {
+			setBlock(new Block(this, x, y, z, id), x, y, z);
 		}
 	}
 
 	public List<Mesh> getMesh(){
-		if (this.meshgroup != null) return this.meshgroup;
-
-		List<Mesh> output = new ArrayList<>();
-		for (int i = 0; i < CHUNK_SIZE; i++){
-			for (int j = 0; j < CHUNK_SIZE; j++){
-				for (int k = 0; k < CHUNK_SIZE; k++){
-					if (this.blocks[i][j][k] != null){
-						output.add(this.blocks[i][j][k].getMesh());
-					}
+		return getMesh(null);
+	}
+
+	/**
+	 * Build the meshes if needed
+	 * @param borders the neighbours seen by the mesher, used by the chunk loader threads (null reads the world)
+	 */
+	public List<Mesh> getMesh(ChunkMesher.Borders borders){
+		if (this.meshgroup == null){
+			buildMesh(borders);
+		}
+		return this.meshgroup;
+	}
+
+	// Cull the dirty blocks and build the meshes, returns the number of culled blocks
+	private int buildMesh(ChunkMesher.Borders borders){
+		ChunkEvent.Mesh event = new ChunkEvent.Mesh();
+		event.begin();
+		long start = System.nanoTime();
+		ChunkMesher mesher = new ChunkMesher(this, borders);
+		int count = cull(mesher);
+		CULL_TIMER.record(System.nanoTime()-start);
+		this.meshgroup = mesher.build(this.faces);
+		this.meshLights = mesher.getMeshLights();
+		this.triangles = mesher.getTriangles();
+		this.perBlockTriangles = mesher.getPerBlockTriangles();
+		MESH_TIMER.record(System.nanoTime()-start);
+		event.culledBlocks = count;
+		event.triangles = this.triangles;
+		event.commit(getX(), getY(), getZ());
+		return count;
+	}
+
+	private int cull(ChunkMesher mesher){
+		int count = 0;
+		if (this.faces == null || this.dirty){
+			if (this.faces == null) this.faces = new byte[CHUNK_SIZE*CHUNK_SIZE*CHUNK_SIZE];
+			count = mesher.cull(this.faces);
+		} else {
+			for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+				if ((this.dirtyBorders & (1 << f)) != 0){
+					count += mesher.cullBorder(this.faces, f);
 				}
 			}
+			for (int i = this.dirtyBlocks.nextSetBit(0); i >= 0; i = this.dirtyBlocks.nextSetBit(i+1)){
+				count += mesher.cullBlock(this.faces, i % CHUNK_SIZE, i / (CHUNK_SIZE*CHUNK_SIZE), i / CHUNK_SIZE % CHUNK_SIZE);
+			}
 		}
-		this.meshgroup = output;
-		return output;
+		this.dirty = false;
+		this.dirtyBorders = 0;
+		this.dirtyBlocks.clear();
+		this.lightDirty = false;
+		return count;
 	}
 
 	public void updateMesh(){
+		markDirty();
+		refresh();
+	}
+
+	/**
+	 * Cull the dirty blocks and rebuild the mesh
+	 * @return the number of culled blocks
+	 */
+	public int refresh(){
+		RenderListener listener = this.world.getRenderListener();
+		if (listener == null) return 0; // Headless, the mesh is built if a renderer is attached later
+
+		List<Mesh> oldMeshes = this.meshgroup;
+		int count = buildMesh(null);
+
+		if (oldMeshes != null){
+			for (Mesh mesh : oldMeshes){
+				listener.removeMesh(mesh);
+			}
+		}
 		for (Mesh mesh : this.meshgroup){
-			ENGINE.removeObject(mesh);
+			listener.addMesh(mesh);
 		}
-		this.meshgroup = null;
+		return count;
+	}
 
-		List<Mesh> newObjects = getMesh();
-		for (Mesh mesh : newObjects){
-			ENGINE.addObject(mesh);
+	// Give the meshes to the renderer, they are built if needed
+	public void attachMesh(){
+		RenderListener listener = this.world.getRenderListener();
+		if (listener == null) return;
+		for (Mesh mesh : getMesh()){
+			listener.addMesh(mesh);
 		}
+	}
 
-		setupFaces();
+	// Take the meshes away from the renderer, used when the chunk is unloaded
+	public void detachMesh(){
+		RenderListener listener = this.world.getRenderListener();
+		if (listener == null || this.meshgroup == null) return;
+		for (Mesh mesh : this.meshgroup){
+			listener.removeMesh(mesh);
+		}
 	}
 
-	public void setupFaces(){
-		for (int i = 0; i < CHUNK_SIZE; i++){ // x
-			for (int j = 0; j < CHUNK_SIZE; j++){ // y
-				for (int k = 0; k < CHUNK_SIZE; k++){ // z
-					if (this.blocks[i][j][k] != null) this.blocks[i][j][k].setupFaces();
-				}
+	// True if the blocks changed since the chunk was loaded or last saved
+	public boolean isModified(){
+		return this.modified;
+	}
+
+	public void markSaved(){
+		this.modified = false;
+	}
+
+	// Every block needs to be culled again
+	public void markDirty(){
+		this.dirty = true;
+	}
+
+	// Only the faces on one side (index in ChunkMesher.NORMALS) need to be culled again
+	public void markBorderDirty(int side){
+		this.dirtyBorders |= 1 << side;
+	}
+
+	// Only the faces of one block need to be culled again
+	public void markBlockDirty(int x, int y, int z){
+		if (containsBlock(x, y, z)){
+			this.dirtyBlocks.set(getIndex(x, y, z));
+		}
+	}
+
+	public boolean hasDirtyBlocks(){
+		return !this.dirtyBlocks.isEmpty();
+	}
+
+	public boolean isDirty(){
+		return this.dirty || this.dirtyBorders != 0 || !this.dirtyBlocks.isEmpty() || this.lightDirty;
+	}
+
+	// Visible faces of each block as of the last refresh, null if the chunk was never meshed
+	byte[] getFaces(){
+		return this.faces;
+	}
+
+	// Packed light of a block, see LightEngine
+	public int getLight(int x, int y, int z){
+		return containsBlock(x, y, z) ? this.light[getIndex(x, y, z)] & 0xFF : 0;
+	}
+
+	/**
+	 * Change one light channel of a block. Changes are batched, the mesh is rebuilt once by the ChunkManager
+	 * @param channel LightEngine.BLOCK or LightEngine.SKY
+	 */
+	public void setLight(int x, int y, int z, int channel, int intensity){
+		if (!containsBlock(x, y, z)) return;
+		int index = getIndex(x, y, z);
+		int packed = this.light[index];
+		int value = channel == LightEngine.SKY ? (packed & 0x0F) | (intensity << 4) : (packed & 0xF0) | intensity;
+		if (value == packed) return;
+		this.light[index] = (byte)value;
+		this.version++;
+		markLightDirty();
+
+		// The faces of the neighbours next to this block are lit by it
+		for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+			int[] dir = ChunkMesher.NORMALS[f];
+			if (!containsBlock(x+dir[0], y+dir[1], z+dir[2])){
+				Chunk other = this.world.getChunkAt(getX()+dir[0], getY()+dir[1], getZ()+dir[2]);
+				if (other != null) other.markLightDirty();
+			}
+		}
+	}
+
+	// Only the light of the mesh changed, it's rebuilt without culling
+	private void markLightDirty(){
+		if (!this.lightDirty){
+			this.lightDirty = true;
+			this.world.scheduleMeshUpdate(this);
+		}
+	}
+
+	public int getVersion(){
+		return this.version;
+	}
+
+	byte[] getLightData(){
+		return this.light;
+	}
+
+	// Update the light of the triangles after a change of the sky light, the meshes are not rebuilt
+	public void applySkyLight(int skyLight){
+		if (this.meshgroup == null) return;
+		for (int i = 0; i < this.meshgroup.size(); i++){
+			Mesh mesh = this.meshgroup.get(i);
+			byte[] lights = this.meshLights.get(i);
+			for (int j = 0; j < lights.length; j++){
+				mesh.getTriangles()[j].setLight(LightEngine.getIntensity(lights[j] & 0xFF, skyLight));
 			}
 		}
 	}
 
+	public boolean isVisible(){
+		return this.visible;
+	}
+
+	public void setVisible(boolean visible){
+		this.visible = visible;
+	}
+
+	public int getTriangles(){
+		return this.triangles;
+	}
+
+	public int getPerBlockTriangles(){
+		return this.perBlockTriangles;
+	}
+
 	public Block getBlockAt(int x, int y, int z){
 		if (containsBlock(x, y, z)){
-			return this.blocks[x][y][z];
+			int index = getIndex(x, y, z);
+			Block block = this.blocks.get(index);
+			if (block == null){
+				int id = this.storage.get(index);
+				if (id == 0) return null;
+				block = new Block(this, x, y, z, id);
+				this.blocks.put(index, block);
+			}
+			return block;
 		} else {
 			return null;
 		}
 	}
 
+	public int getBlockId(int x, int y, int z){
+		if (containsBlock(x, y, z)){
+			return this.storage.get(getIndex(x, y, z));
+		} else {
+			return 0;
+		}
+	}
+
 	public void setBlock(Block block, int x, int y, int z){
 		if (containsBlock(x, y, z)){
-			this.blocks[x][y][z] = block;
-		} else if (block != null){
-			// Block will be stored
-			Chunk chunk = this.world.getChunkAt(block.getX()/CHUNK_SIZE, block.getY()/CHUNK_SIZE, block.getZ()/CHUNK_SIZE);
-			if (chunk == null){
-				pendingBlocks.add(block);
-			} else if (block.getX() >= 0 && block.getY() >= 0 && block.getZ() >= 0){
-				chunk.setBlock(block, block.getX() % CHUNK_SIZE, block.getY() % CHUNK_SIZE, block.getZ() % CHUNK_SIZE);
-				chunk.updateMesh();
+			int index = getIndex(x, y, z);
+			this.modified = true;
+			this.version++;
+			if (block == null){
+				this.storage.set(index, 0);
+				this.blocks.remove(index);
+			} else {
+				this.storage.set(index, block.getId());
+				this.blocks.put(index, block);
 			}
+		} else if (block != null){
+			// Block will be placed by the ChunkManager once this chunk is added to the world
+			this.overflowBlocks.add(block);
 		}
 	}
 
@@ -245,6 +486,24 @@ public class Chunk{
 		return x >= 0 && y >= 0 && z >= 0 && x < CHUNK_SIZE && y < CHUNK_SIZE && z < CHUNK_SIZE;
 	}
 
+	// The chunk size is read once at startup, worlds saved with other sizes are kept apart (see RegionStorage)
+	private static int readChunkSize(){
+		int size = Integer.getInteger("blockworld.chunkSize", 4);
+		if (size < 4 || size > 32 || Integer.bitCount(size) != 1){
+			System.out.println("Invalid chunk size: "+size+", using 4");
+			size = 4;
+		}
+		return size;
+	}
+
+	private static int getIndex(int x, int y, int z){
+		return x+(y*CHUNK_SIZE+z)*CHUNK_SIZE;
+	}
+
+	public BlockStorage getStorage(){
+		return this.storage;
+	}
+
 	public World getWorld(){
 		return this.world;
 	}
@@ -0,0 +1,68 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+
+/**
+ * Blocks of the recently unloaded chunks, kept in their palette storage.
+ * A chunk that is loaded again is taken from here instead of being read from the region files.
+ * The least recently unloaded chunks are evicted once the cache uses more than CAPACITY bytes.
+ */
+public class ChunkCache{
+	private static final long CAPACITY = 16*1024*1024;
+	private static final int ENTRY_SIZE = 64; // Map entry, key and storage object
+
+	private Map<Long, BlockStorage> chunks = new LinkedHashMap<>();
+	private long memoryUsage;
+	private int hits, misses;
+
+	public synchronized void put(int x, int y, int z, BlockStorage storage){
+		long key = ChunkMap.pack(x, y, z);
+		BlockStorage old = this.chunks.remove(key);
+		if (old != null) this.memoryUsage -= getSize(old);
+		this.chunks.put(key, storage);
+		this.memoryUsage += getSize(storage);
+
+		Iterator<BlockStorage> iterator = this.chunks.values().iterator();
+		while (this.memoryUsage > CAPACITY && iterator.hasNext()){
+			this.memoryUsage -= getSize(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	// Returns null if the chunk is not cached, a cached chunk is removed since it becomes loaded
+	public synchronized BlockStorage take(int x, int y, int z){
+		BlockStorage storage = this.chunks.remove(ChunkMap.pack(x, y, z));
+		if (storage == null){
+			this.misses++;
+		} else {
+			this.hits++;
+			this.memoryUsage -= getSize(storage);
+		}
+		return storage;
+	}
+
+	private static long getSize(BlockStorage storage){
+		return ENTRY_SIZE+storage.getMemoryUsage();
+	}
+
+	public synchronized void clear(){
+		this.chunks.clear();
+		this.memoryUsage = 0;
+	}
+
+	public synchronized int size(){
+		return this.chunks.size();
+	}
+
+	public synchronized long getMemoryUsage(){
+		return this.memoryUsage;
+	}
+
+	public synchronized int getHits(){
+		return this.hits;
+	}
+
+	public synchronized int getMisses(){
+		return this.misses;
+	}
+}
@@ -0,0 +1,191 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+import com.orangomango.blockworld.storage.*;
+import com.orangomango.blockworld.metrics.*;
+
+/**
+ * Loads chunks on a pool of worker threads.
+ * Each chunk goes through read-or-generate (unless it was unloaded recently, see ChunkCache), populate (pending blocks), light and mesh stages,
+ * finished chunks are handed back to the render thread through a queue.
+ * The workers never read other chunks, the mesh stage uses a copy of the neighbours' borders taken when the load was queued.
+ */
+public class ChunkLoader{
+	private static final Metrics.Timer LOAD_TIMER = Metrics.timer("chunk.load");
+	private static final Metrics.Timer GENERATE_TIMER = Metrics.timer("chunk.generate");
+	private static final Metrics.Timer LIGHT_TIMER = Metrics.timer("chunk.light");
+
+	private World world;
+	private RegionStorage storage;
+	private ChunkWriter writer;
+	private ChunkCache cache;
+	private ExecutorService executor;
+	private Map<Chunk.ChunkPosition, LoadTask> tasks = new HashMap<>(); // Accessed only from the render thread
+	private Queue<LoadTask> ready = new ConcurrentLinkedQueue<>();
+	private int epoch; // Changed by cancelAll, tasks of an older epoch belong to a world that was dropped
+
+	private class LoadTask implements Runnable{
+		private Chunk.ChunkPosition position;
+		private ChunkMesher.Borders borders;
+		private int epoch;
+		private volatile boolean cancelled;
+		private Chunk chunk;
+		private int[] received;
+		private BlockStorage cached; // Taken from the cache, given back if the chunk is not used
+
+		public LoadTask(Chunk.ChunkPosition position, ChunkMesher.Borders borders, int epoch){
+			this.position = position;
+			this.borders = borders;
+			this.epoch = epoch;
+		}
+
+		@Override
+		public void run(){
+			if (this.cancelled) return;
+			try {
+				// Recently unloaded, read or generate
+				Chunk chunk;
+				long start;
+				this.cached = cache.take(this.position.getX(), this.position.getY(), this.position.getZ());
+				int[][][] data = this.cached == null ? writer.getPending(this.position.getX(), this.position.getY(), this.position.getZ()) : null; // Not written yet
+				if (this.cached == null && data == null){
+					ChunkEvent.Load loadEvent = new ChunkEvent.Load();
+					loadEvent.begin();
+					start = System.nanoTime();
+					data = storage.loadChunk(this.position.getX(), this.position.getY(), this.position.getZ());
+					LOAD_TIMER.record(System.nanoTime()-start);
+					loadEvent.found = data != null;
+					loadEvent.commit(this.position.getX(), this.position.getY(), this.position.getZ());
+				}
+
+				if (this.cached != null){
+					chunk = new Chunk(world, this.position, this.cached);
+				} else if (data == null){
+					ChunkEvent.Generate generateEvent = new ChunkEvent.Generate();
+					generateEvent.begin();
+					start = System.nanoTime();
+					chunk = new Chunk(world, this.position);
+					GENERATE_TIMER.record(System.nanoTime()-start);
+					generateEvent.commit(this.position.getX(), this.position.getY(), this.position.getZ());
+				} else {
+					chunk = new Chunk(world, this.position, data);
+				}
+
+				// Populate
+				this.received = chunk.buildPendingBlocks();
+				if (this.cancelled){
+					giveBack();
+					return;
+				}
+
+				// Light (only from the chunk itself, the borders are done once it's in the world)
+				start = System.nanoTime();
+				world.getLightEngine().initChunk(chunk);
+				LIGHT_TIMER.record(System.nanoTime()-start);
+
+				// Mesh
+				if (this.borders != null){
+					chunk.getMesh(this.borders);
+				}
+				this.chunk = chunk;
+			} catch (Exception ex){
+				ex.printStackTrace();
+			}
+			ready.add(this);
+		}
+
+		// The chunk is not used, the blocks it took and its cached storage are left for the next load.
+		// A storage that received pending blocks is dropped, they would not be merged (and saved) again from the cache.
+		// Nothing is given back once cancelAll was called, the cache and the pending blocks may belong to a new world
+		private void giveBack(){
+			synchronized (ChunkLoader.this){
+				if (this.epoch != ChunkLoader.this.epoch) return;
+				if (this.received != null){
+					world.getPendingBlocks().putBack(this.position.getX(), this.position.getY(), this.position.getZ(), this.received);
+				}
+				if (this.cached != null && (this.received == null || this.received.length == 0)){
+					cache.put(this.position.getX(), this.position.getY(), this.position.getZ(), this.cached);
+				}
+			}
+		}
+	}
+
+	public ChunkLoader(World world, RegionStorage storage, ChunkWriter writer, ChunkCache cache){
+		this.world = world;
+		this.storage = storage;
+		this.writer = writer;
+		this.cache = cache;
+		int threads = Math.max(1, Runtime.getRuntime().availableProcessors()-1);
+		// Chunks can be generated in any order (see World.getChunkRandom), async mode keeps the nearest first order
+		this.executor = new ForkJoinPool(threads, pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("Chunk loader "+thread.getPoolIndex());
+			return thread;
+		}, null, true);
+	}
+
+	public void load(int x, int y, int z){
+		Chunk.ChunkPosition pos = new Chunk.ChunkPosition(x, y, z);
+		if (this.tasks.containsKey(pos)) return;
+		LoadTask task = new LoadTask(pos, this.world.isRendering() ? new ChunkMesher.Borders(this.world, x, y, z) : null, this.epoch);
+		this.tasks.put(pos, task);
+		this.executor.execute(task);
+	}
+
+	public boolean isLoading(int x, int y, int z){
+		return this.tasks.containsKey(new Chunk.ChunkPosition(x, y, z));
+	}
+
+	public Set<Chunk.ChunkPosition> getLoading(){
+		return this.tasks.keySet();
+	}
+
+	public void cancel(Chunk.ChunkPosition pos){
+		LoadTask task = this.tasks.remove(pos);
+		if (task != null){
+			task.cancelled = true;
+		}
+	}
+
+	// Once this returns the running tasks don't give anything back, see LoadTask.giveBack
+	public void cancelAll(){
+		synchronized (this){
+			this.epoch++;
+		}
+		for (LoadTask task : this.tasks.values()){
+			task.cancelled = true;
+		}
+		this.tasks.clear();
+	}
+
+	/**
+	 * Hand the finished chunks to the given consumer until the time budget runs out.
+	 * Must be called from the render thread.
+	 * @param budget maximum time to spend in nanoseconds
+	 */
+	public void update(long budget, Consumer<Chunk> consumer){
+		long start = System.nanoTime();
+		LoadTask task;
+		while (System.nanoTime()-start < budget && (task = this.ready.poll()) != null){
+			if (this.tasks.get(task.position) != task){
+				// The chunk left the range while it was queued
+				task.giveBack();
+				continue;
+			}
+			this.tasks.remove(task.position);
+			if (task.chunk != null){
+				// Neighbours loaded, unloaded or changed after the copy of their borders was taken
+				if (task.borders != null){
+					int changed = task.borders.getChangedSides(this.world, task.position.getX(), task.position.getY(), task.position.getZ());
+					for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+						if ((changed & (1 << f)) != 0) task.chunk.markBorderDirty(f);
+					}
+				}
+				consumer.accept(task.chunk);
+			}
+		}
+	}
+}
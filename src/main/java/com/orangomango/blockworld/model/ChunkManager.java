@@ -5,35 +5,111 @@ import javafx.geometry.Point3D;
 import java.util.*;
 import java.io.*;
 
-import com.orangomango.rendering3d.model.Mesh;
-import static com.orangomango.blockworld.MainApplication.ENGINE;
+import com.orangomango.blockworld.storage.*;
+import com.orangomango.blockworld.entity.Frustum;
+import com.orangomango.blockworld.metrics.*;
+import com.orangomango.blockworld.util.Util;
 
 public class ChunkManager{
-	public static final double RENDER_DISTANCE = 6.5;
+	public static final double RENDER_DISTANCE = Math.max(26.0/Chunk.CHUNK_SIZE, 1.5); // In chunks, about 26 blocks
+	private static final int LOAD_ABOVE = 4; // Blocks loaded above the player
+	private static final int LOAD_BELOW = 12; // Blocks loaded below the player
+	private static final boolean COMPRESSION = true;
+	private static final boolean MAPPED_STORAGE = Boolean.getBoolean("blockworld.mappedStorage"); // Memory-mapped region files
+	private static final boolean DELTA_STORAGE = Boolean.getBoolean("blockworld.deltaStorage"); // Save only the changes to the generated terrain
+	private static final int WORLD_INFO_VERSION = 1;
+	private static final long JOURNAL_LIMIT = 64*1024; // Bytes of the edits journal before the modified chunks are saved
+	private static final long JOURNAL_SYNC_INTERVAL = 1000; // Time (ms) between the syncs of the edits journal
+	private static final long FRAME_BUDGET = 4_000_000; // Time (ns) spent each frame adding loaded chunks
+	private static final long REBUILD_BUDGET = 3_000_000; // Time (ns) spent each frame rebuilding the meshes of changed chunks
+	private static final Metrics.Timer UPDATE_TIMER = Metrics.timer("manager.update");
+	private static final Metrics.Timer ADD_TIMER = Metrics.timer("chunk.add");
+	private static final Metrics.Counter LOADED_COUNTER = Metrics.counter("chunks.loaded");
+	private static final Metrics.Counter UNLOADED_COUNTER = Metrics.counter("chunks.unloaded");
 
 	private World world;
 	private int chunks;
+	private File dir; // Resolved once, the shutdown hook saves where the world was opened
+	private RegionStorage storage;
+	private ChunkWriter writer;
+	private EditJournal journal;
+	private ChunkLoader loader;
+	private ChunkCache cache = new ChunkCache();
+	private LodTerrain lod;
+	private Set<Chunk> dirtyChunks = new LinkedHashSet<>();
+	private int culledBlocks, lastCulledBlocks;
+	private int visibleChunks, culledChunks;
+	private long lastJournalSync;
 
+	/**
+	 * Open the saved world, the seed of the world is replaced by the saved one
+	 */
 	public ChunkManager(World world, int chunks){
 		this.world = world;
 		this.chunks = chunks;
+		this.dir = new File(System.getProperty("user.home"), ".blockWorld/");
+		this.storage = new RegionStorage(this.dir, COMPRESSION, MAPPED_STORAGE);
+		this.storage.setTerrain((x, y, z) -> getData(new Chunk(world, new Chunk.ChunkPosition(x, y, z))), DELTA_STORAGE);
+		loadWorldInfo();
+		int converted = this.storage.convertLegacyChunks();
+		if (converted > 0){
+			System.out.println("Converted "+converted+" chunks to the region format");
+		}
+		this.journal = new EditJournal(new File(this.dir, "journal.bin"));
+		recoverEdits();
+		world.setEditJournal(this.journal);
+		this.writer = new ChunkWriter(this.storage);
+		Runtime.getRuntime().addShutdownHook(new Thread(this::close, "Chunk writer shutdown"));
+		this.loader = new ChunkLoader(world, this.storage, this.writer, this.cache);
+		this.lod = new LodTerrain(world);
 		loadPendingBlocks();
+
+		Metrics.gauge("chunks.resident", () -> this.world.getChunks().size());
+		Metrics.gauge("chunks.loading", () -> this.loader.getLoading().size());
+		Metrics.gauge("chunks.visible", () -> this.visibleChunks);
+		Metrics.gauge("blocks.resident", this::countBlocks);
+		Metrics.gauge("blocks.pending", () -> this.world.getPendingBlocks().size());
+		Metrics.gauge("blocks.lightUpdates", () -> this.world.getLightEngine().getUpdatedBlocks());
+		Metrics.gauge("columns.hits", () -> this.world.getColumns().getHits());
+		Metrics.gauge("columns.misses", () -> this.world.getColumns().getMisses());
+		Metrics.gauge("chunks.saving", this.writer::getPendingCount);
+		Metrics.gauge("chunkCache.size", this.cache::size);
+		Metrics.gauge("chunkCache.bytes", this.cache::getMemoryUsage);
+		Metrics.gauge("chunkCache.hits", this.cache::getHits);
+		Metrics.gauge("chunkCache.misses", this.cache::getMisses);
+		Metrics.gauge("lod.tiles", this.lod::getTiles);
+		Metrics.gauge("lod.triangles", this.lod::getTriangles);
 	}
 
 	public void deleteSavedWorld(){
-		File dir = new File(System.getProperty("user.home"), ".blockWorld/");
-		if (dir.exists()){
-			for (File file : dir.listFiles()){
+		this.loader.cancelAll();
+		this.world.getPendingBlocks().clear(); // Blocks given back by the loads cancelled meanwhile
+		this.writer.discard();
+		this.storage.close();
+		this.journal.close();
+		this.cache.clear();
+		this.lod.clear();
+		if (this.dir.exists()){
+			for (File file : this.dir.listFiles()){
 				file.delete();
 			}
 		}
+		saveWorldInfo(); // The new world uses the current seed
 	}
 
-	public void manage(Point3D chunkPos){
+	/**
+	 * Load the chunks in range and unload the others
+	 * @param position the position of the player in blocks
+	 */
+	public void manage(Point3D position){
+		Point3D chunkPos = Util.getChunkPos(position);
+		this.lastCulledBlocks = this.culledBlocks;
+		this.culledBlocks = 0;
+
 		// Get the chunks to unload
 		List<Chunk> toUnload = new ArrayList<>();
 		for (Chunk chunk : this.world.getChunks()){
-			if ((new Point3D(chunk.getX(), chunk.getY(), chunk.getZ())).distance(chunkPos) > RENDER_DISTANCE){
+			if (!isInRange(chunkPos, chunk.getX(), chunk.getY(), chunk.getZ())){
 				toUnload.add(chunk);
 			}
 		}
@@ -43,152 +119,393 @@ public class ChunkManager{
 			unloadChunk(chunk);
 		}
 
+		// Cancel the queued chunks that are not in range anymore
+		List<Chunk.ChunkPosition> toCancel = new ArrayList<>();
+		for (Chunk.ChunkPosition pos : this.loader.getLoading()){
+			if (!isInRange(chunkPos, pos.getX(), pos.getY(), pos.getZ())){
+				toCancel.add(pos);
+			}
+		}
+		for (Chunk.ChunkPosition pos : toCancel){
+			this.loader.cancel(pos);
+		}
+
 		// Get the chunks to load
 		int chunkX = (int)chunkPos.getX();
 		int chunkY = (int)chunkPos.getY();
 		int chunkZ = (int)chunkPos.getZ();
 		List<Point3D> toLoad = new ArrayList<>();
+
+		// From the chunk 4 blocks above to the chunk 12 blocks below the player, or the whole column
+		int minY = Chunk.COLUMNS ? 0 : getMinChunkY(position.getY());
+		int maxY = Chunk.COLUMNS ? Chunk.COLUMN_HEIGHT/Chunk.CHUNK_SIZE-1 : getMaxChunkY(position.getY());
 		for (int i = -this.chunks/2; i < -this.chunks/2+this.chunks; i++){
 			for (int j = -this.chunks/2; j < -this.chunks/2+this.chunks; j++){
-				for (int k = -1; k < 3; k++){ // y-chunks
-					if (chunkX+i < 0 || chunkY+k < 0 || chunkZ+j < 0) continue;
-					if (this.world.getChunkAt(chunkX+i, chunkY+k, chunkZ+j) == null){
-						if ((new Point3D(chunkX, chunkY, chunkZ)).distance(new Point3D(chunkX+i, chunkY+k, chunkZ+j)) <= RENDER_DISTANCE){
-							toLoad.add(new Point3D(chunkX+i, chunkY+k, chunkZ+j));
+				for (int y = minY; y <= maxY; y++){ // y-chunks
+					if (chunkX+i < 0 || y < 0 || chunkZ+j < 0) continue;
+					if (this.world.getChunkAt(chunkX+i, y, chunkZ+j) == null && !this.loader.isLoading(chunkX+i, y, chunkZ+j)){
+						if (isInRange(chunkPos, chunkX+i, y, chunkZ+j)){
+							toLoad.add(new Point3D(chunkX+i, y, chunkZ+j));
 						}
 					}
 				}
 			}
 		}
 
-		// Load the chunks
+		// Load the chunks, nearest first
+		toLoad.sort(Comparator.comparingDouble(p -> p.distance(chunkPos)));
 		for (Point3D point : toLoad){
-			loadChunk((int)point.getX(), (int)point.getY(), (int)point.getZ());
+			this.loader.load((int)point.getX(), (int)point.getY(), (int)point.getZ());
 		}
 
-		if (toUnload.size() > 0 || toLoad.size() > 0){
-			for (Chunk chunk : this.world.getChunks()){
-				chunk.setupFaces();
+		this.lod.manage(chunkX, chunkZ);
+
+		try {
+			if (this.journal.getPosition() > JOURNAL_LIMIT){
+				checkpoint();
 			}
+		} catch (IOException ex){
+			ex.printStackTrace();
+		}
+	}
+
+	public static int getMinChunkY(double y){
+		return Math.floorDiv((int)Math.floor(y)-LOAD_ABOVE, Chunk.CHUNK_SIZE);
+	}
+
+	public static int getMaxChunkY(double y){
+		return Math.floorDiv((int)Math.floor(y)+LOAD_BELOW, Chunk.CHUNK_SIZE);
+	}
+
+	// With COLUMNS set only the horizontal distance counts, every section of a column is loaded
+	private static boolean isInRange(Point3D chunkPos, int x, int y, int z){
+		double dx = x-chunkPos.getX();
+		double dy = Chunk.COLUMNS ? 0 : y-chunkPos.getY();
+		double dz = z-chunkPos.getZ();
+		return dx*dx+dy*dy+dz*dz <= RENDER_DISTANCE*RENDER_DISTANCE;
+	}
+
+	// Called once every frame
+	public void update(){
+		long start = System.nanoTime();
+		this.dirtyChunks.addAll(this.world.takeMeshUpdates());
+
+		// Cull again only the blocks touched by a load, an unload or an edit, chunks with only light changes are just rebuilt.
+		// Edited chunks are always rebuilt so edits show on the next frame, the others wait when they are over the budget
+		Iterator<Chunk> iterator = this.dirtyChunks.iterator();
+		while (iterator.hasNext()){
+			Chunk chunk = iterator.next();
+			if (this.world.getChunkAt(chunk.getX(), chunk.getY(), chunk.getZ()) != chunk){
+				iterator.remove();
+			} else if (chunk.hasDirtyBlocks() || (System.nanoTime()-start < REBUILD_BUDGET && !isWaitingForNeighbours(chunk))){
+				iterator.remove();
+				this.culledBlocks += chunk.refresh();
+			}
+		}
+
+		this.loader.update(FRAME_BUDGET, this::addLoadedChunk);
+		this.lod.update();
+
+		// The journal is forced to the disk on the writer thread, a system crash loses at most the edits of the last interval
+		if (System.currentTimeMillis()-this.lastJournalSync > JOURNAL_SYNC_INTERVAL){
+			this.lastJournalSync = System.currentTimeMillis();
+			this.writer.checkpoint(() -> {
+				try {
+					this.journal.sync();
+				} catch (IOException ex){
+					ex.printStackTrace();
+				}
+			});
+		}
+		UPDATE_TIMER.record(System.nanoTime()-start);
+	}
+
+	// The chunk changes again when a loading neighbour arrives, so it's rebuilt once they are all there
+	private boolean isWaitingForNeighbours(Chunk chunk){
+		for (int[] dir : ChunkMesher.NORMALS){
+			if (this.loader.isLoading(chunk.getX()+dir[0], chunk.getY()+dir[1], chunk.getZ()+dir[2])) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Decide which chunks are drawn this frame, a chunk is skipped when its box is outside the frustum.
+	 * Called once every frame after update()
+	 */
+	public void updateVisibility(Frustum frustum){
+		this.visibleChunks = 0;
+		this.culledChunks = 0;
+		for (Chunk chunk : this.world.getChunks()){
+			double x = chunk.getX()*Chunk.CHUNK_SIZE;
+			double y = chunk.getY()*Chunk.CHUNK_SIZE;
+			double z = chunk.getZ()*Chunk.CHUNK_SIZE;
+			boolean visible = frustum.isVisible(x, y, z, x+Chunk.CHUNK_SIZE, y+Chunk.CHUNK_SIZE, z+Chunk.CHUNK_SIZE);
+			chunk.setVisible(visible);
+			if (visible){
+				this.visibleChunks++;
+			} else {
+				this.culledChunks++;
+			}
+		}
+		this.lod.updateVisibility(frustum);
+	}
+
+	private void addLoadedChunk(Chunk chunk){
+		long start = System.nanoTime();
+		this.world.addChunk(chunk, new Chunk.ChunkPosition(chunk.getX(), chunk.getY(), chunk.getZ()));
+		chunk.attachMesh(); // Built by the loader, see ChunkLoader
+		chunk.applySkyLight(this.world.getSkyLight()); // The sky light may have changed while the chunk was loading
+
+		// Pending blocks added while the chunk was being loaded
+		if (chunk.buildPendingBlocks().length > 0){
+			this.world.getLightEngine().initChunk(chunk);
+			chunk.markDirty();
+			this.dirtyChunks.add(chunk);
+		}
+
+		// Place the blocks that this chunk generated in other chunks
+		for (Block block : chunk.takeOverflowBlocks()){
+			Chunk other = this.world.getChunkAt(block.getX()/Chunk.CHUNK_SIZE, block.getY()/Chunk.CHUNK_SIZE, block.getZ()/Chunk.CHUNK_SIZE);
+			if (other == null){
+				this.world.getPendingBlocks().add(block.getX(), block.getY(), block.getZ(), block.getId());
+			} else if (block.getX() >= 0 && block.getY() >= 0 && block.getZ() >= 0){
+				if (other.mergeBlock(block.getId(), block.getX() % Chunk.CHUNK_SIZE, block.getY() % Chunk.CHUNK_SIZE, block.getZ() % Chunk.CHUNK_SIZE)){
+					this.world.markBlockChanged(block.getX(), block.getY(), block.getZ());
+					this.world.getLightEngine().onBlockChanged(block.getX(), block.getY(), block.getZ());
+				}
+			}
+		}
+
+		// The sides of the chunk facing neighbours that changed while it was loading are already marked by the loader,
+		// the neighbours are culled again only if this chunk doesn't look like the missing chunk they were meshed against
+		for (int i = 0; i < ChunkMesher.NORMALS.length; i++){
+			int[] dir = ChunkMesher.NORMALS[i];
+			Chunk other = this.world.getChunkAt(chunk.getX()+dir[0], chunk.getY()+dir[1], chunk.getZ()+dir[2]);
+			if (other != null && !ChunkMesher.isOpenBorder(chunk, i)){
+				other.markBorderDirty(ChunkMesher.OPPOSITE[i]);
+				this.dirtyChunks.add(other);
+			}
+		}
+		if (chunk.isDirty()){
+			this.dirtyChunks.add(chunk);
+		}
+
+		// Light coming from or going to the neighbours
+		this.world.getLightEngine().propagateBorders(chunk);
+
+		this.lod.onChunkChanged(chunk.getX(), chunk.getZ());
+		LOADED_COUNTER.increment();
+		ADD_TIMER.record(System.nanoTime()-start);
+	}
+
+	// Called when the sky light level changes
+	public void applySkyLight(){
+		for (Chunk chunk : this.world.getChunks()){
+			chunk.applySkyLight(this.world.getSkyLight());
 		}
+		this.lod.applySkyLight();
 	}
 
 	private void unloadChunk(Chunk chunk){
+		ChunkEvent.Unload event = new ChunkEvent.Unload();
+		event.begin();
 		saveChunkToFile(chunk);
+		this.cache.put(chunk.getX(), chunk.getY(), chunk.getZ(), chunk.getStorage());
 		this.world.removeChunk(chunk.getX(), chunk.getY(), chunk.getZ());
-		for (Mesh mesh : chunk.getMesh()){
-			ENGINE.removeObject(mesh);
+		chunk.detachMesh();
+		this.lod.onChunkChanged(chunk.getX(), chunk.getZ());
+
+		// Faces on the shared borders become visible
+		for (int i = 0; i < ChunkMesher.NORMALS.length; i++){
+			int[] dir = ChunkMesher.NORMALS[i];
+			Chunk other = this.world.getChunkAt(chunk.getX()+dir[0], chunk.getY()+dir[1], chunk.getZ()+dir[2]);
+			if (other != null && !ChunkMesher.isOpenBorder(chunk, i)){
+				other.markBorderDirty(ChunkMesher.OPPOSITE[i]);
+				this.dirtyChunks.add(other);
+			}
 		}
+		UNLOADED_COUNTER.increment();
+		event.commit(chunk.getX(), chunk.getY(), chunk.getZ());
 	}
 
-	private void loadChunk(int x, int y, int z){
-		boolean loaded = loadChunkFromFile(x, y, z);
-		if (!loaded){
-			Chunk chunk = this.world.addChunk(x, y, z);
-			for (Mesh mesh : chunk.getMesh()){
-				ENGINE.addObject(mesh);
+	private long countBlocks(){
+		long count = 0;
+		for (Chunk chunk : this.world.getChunks()){
+			for (int x = 0; x < Chunk.CHUNK_SIZE; x++){
+				for (int y = 0; y < Chunk.CHUNK_SIZE; y++){
+					for (int z = 0; z < Chunk.CHUNK_SIZE; z++){
+						if (chunk.getBlockId(x, y, z) != 0) count++;
+					}
+				}
 			}
 		}
+		return count;
+	}
+
+	// Number of blocks culled since the last call to manage
+	public int getCulledBlocks(){
+		return this.culledBlocks;
+	}
+
+	// Number of blocks culled between the previous two calls to manage
+	public int getLastCulledBlocks(){
+		return this.lastCulledBlocks;
+	}
+
+	public int getVisibleChunks(){
+		return this.visibleChunks;
+	}
+
+	public int getCulledChunks(){
+		return this.culledChunks;
+	}
+
+	// True while chunks are queued or being loaded
+	public boolean isLoading(){
+		return !this.loader.getLoading().isEmpty();
+	}
+
+	public LodTerrain getLodTerrain(){
+		return this.lod;
 	}
 
 	public void saveWorld(){
+		try {
+			checkpoint();
+		} catch (IOException ex){
+			ex.printStackTrace();
+		}
+		this.writer.flush();
+		System.out.println("World saved");
+	}
+
+	// Save the world when the game is closed, the writer writes what is queued before it stops
+	private void close(){
+		try {
+			checkpoint();
+		} catch (IOException ex){
+			ex.printStackTrace();
+		} finally {
+			this.writer.close();
+		}
+	}
+
+	/**
+	 * Queue every modified chunk, once they are written the pending blocks are saved and the journal is emptied.
+	 * Edits made meanwhile are kept in the journal.
+	 */
+	private void checkpoint() throws IOException{
+		long position = this.journal.getPosition();
 		for (Chunk chunk : this.world.getChunks()){
 			saveChunkToFile(chunk);
 		}
-		savePendingBlocks();
-		System.out.println("World saved");
+		PendingBlocks pendingBlocks = this.world.getPendingBlocks().copy(); // The blocks placed by the queued chunks
+		this.writer.checkpoint(() -> {
+			try {
+				savePendingBlocks(pendingBlocks);
+				this.journal.checkpoint(position);
+			} catch (IOException ex){
+				ex.printStackTrace();
+			}
+		});
 	}
 
-	private void saveChunkToFile(Chunk chunk){
+	// Edits in the journal were not saved before the game was closed
+	private void recoverEdits(){
 		try {
-			File dir = new File(System.getProperty("user.home"), ".blockWorld/");
-			if (!dir.exists()) dir.mkdir();
-			File chunkFile = new File(dir, chunk.toString()+".chunk");
-			if (!chunkFile.exists()) chunkFile.createNewFile();
-			BufferedWriter writer = new BufferedWriter(new FileWriter(chunkFile));
-			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // z
-				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
-					for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // x
-						Block block = chunk.getBlockAt(k, j, i);
-						writer.write(block == null ? "0 " : block.getId()+" ");
-					}
-					writer.newLine();
-				}
-				writer.newLine();
+			long start = System.nanoTime();
+			int count = this.journal.recover(this.storage);
+			if (count > 0){
+				System.out.println("Recovered "+count+" edits in "+(System.nanoTime()-start)/1_000_000+"ms");
 			}
-			writer.close();
 		} catch (IOException ex){
 			ex.printStackTrace();
 		}
 	}
 
-	private boolean loadChunkFromFile(int x, int y, int z){
-		try {
-			File dir = new File(System.getProperty("user.home"), ".blockWorld/");
-			if (!dir.exists()) dir.mkdir();
-			File chunkFile = new File(dir, String.format("%d_%d_%d", x, y, z)+".chunk");
-			if (!chunkFile.exists()) return false;
-			int[][][] chunkData = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
-			BufferedReader reader = new BufferedReader(new FileReader(chunkFile));
-			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // z
-				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
-					String line = reader.readLine();
-					int k = 0;
-					for (String piece : line.split(" ")){
-						int id = Integer.parseInt(piece);
-						chunkData[k++][j][i] = id;
-					}
+	// Queue the chunk to be written if it was modified, see ChunkWriter
+	private void saveChunkToFile(Chunk chunk){
+		if (!chunk.isModified()) return;
+		this.writer.save(chunk.getX(), chunk.getY(), chunk.getZ(), getData(chunk));
+		chunk.markSaved();
+	}
+
+	private static int[][][] getData(Chunk chunk){
+		int[][][] data = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+				for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+					data[i][j][k] = chunk.getBlockId(i, j, k);
 				}
-				reader.readLine();
 			}
-			reader.close();
-			Chunk.ChunkPosition chunkPos = new Chunk.ChunkPosition(x, y, z);
-			Chunk chunk = new Chunk(this.world, chunkPos, chunkData);
-			this.world.addChunk(chunk, chunkPos);
-			for (Mesh mesh : chunk.getMesh()){
-				ENGINE.addObject(mesh);
+		}
+		return data;
+	}
+
+	// The seed and the generator version the saved chunks were made with, the delta records are decoded with them
+	private void saveWorldInfo(){
+		try {
+			if (!this.dir.exists()) this.dir.mkdir();
+			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(this.dir, "world.bin"))));
+			try {
+				stream.writeInt(WORLD_INFO_VERSION);
+				stream.writeInt(this.world.getSeed());
+				stream.writeInt(World.GENERATOR_VERSION);
+			} finally {
+				stream.close();
 			}
-			return true;
 		} catch (IOException ex){
 			ex.printStackTrace();
-			return false;
 		}
 	}
 
-	private void savePendingBlocks(){
+	private void loadWorldInfo(){
+		File file = new File(this.dir, "world.bin");
+		if (!file.exists()){
+			saveWorldInfo();
+			return;
+		}
 		try {
-			File dir = new File(System.getProperty("user.home"), ".blockWorld/");
-			if (!dir.exists()) dir.mkdir();
-			File file = new File(dir, "pendingBlocks.data");
-			if (!file.exists()) file.createNewFile();
-			BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-			for (Block block : Chunk.pendingBlocks){
-				writer.write(String.format("%d %d %d %d\n", block.getX(), block.getY(), block.getZ(), block.getId()));
-			}
-			writer.close();
+			DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				int version = stream.readInt();
+				if (version != WORLD_INFO_VERSION) throw new IOException("Unknown world info format: "+version);
+				int seed = stream.readInt();
+				int generatorVersion = stream.readInt();
+				if (seed != this.world.getSeed()){
+					this.world.setSeed(seed);
+				}
+				if (generatorVersion != World.GENERATOR_VERSION){
+					System.out.println("The world was saved with terrain generator "+generatorVersion+", the changes saved as deltas are lost");
+					this.storage.ignoreDeltas();
+				}
+			} finally {
+				stream.close();
+			}
 		} catch (IOException ex){
+			// The seed is unknown, the delta records can't be trusted
 			ex.printStackTrace();
+			this.storage.ignoreDeltas();
 		}
 	}
+
+	private void savePendingBlocks(PendingBlocks pendingBlocks) throws IOException{
+		if (!this.dir.exists()) this.dir.mkdir();
+		pendingBlocks.save(new File(this.dir, "pendingBlocks.bin"));
+	}
 	
 	private void loadPendingBlocks(){
 		try {
-			File dir = new File(System.getProperty("user.home"), ".blockWorld/");
-			if (!dir.exists()) dir.mkdir();
-			File file = new File(dir, "pendingBlocks.data");
-			if (!file.exists()) file.createNewFile();
-			BufferedReader reader = new BufferedReader(new FileReader(file));
-			Chunk.pendingBlocks.clear();
-			reader.lines().forEach(line -> {
-				String[] parts = line.split(" ");
-				int xp = Integer.parseInt(parts[0]);
-				int yp = Integer.parseInt(parts[1]);
-				int zp = Integer.parseInt(parts[2]);
-				int id = Integer.parseInt(parts[3]);
-				Block block = new Block(this.world, xp, yp, zp, Atlas.MAIN_ATLAS.getBlockType(id));
-				Chunk.pendingBlocks.add(block);
-			});
-			reader.close();
+			File file = new File(this.dir, "pendingBlocks.bin");
+			File legacy = new File(this.dir, "pendingBlocks.data");
+			if (file.exists()){
+				this.world.getPendingBlocks().load(file);
+			} else if (legacy.exists()){
+				// Convert the old text file
+				this.world.getPendingBlocks().loadLegacy(legacy);
+				savePendingBlocks(this.world.getPendingBlocks());
+				legacy.delete();
+			}
 		} catch (IOException ex){
 			ex.printStackTrace();
 		}
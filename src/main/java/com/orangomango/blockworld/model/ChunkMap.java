@@ -0,0 +1,183 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open-addressing map from packed chunk coordinates to chunks.
+ * Lookups do not allocate. Writes are expected from a single thread while
+ * other threads can read concurrently (optimistic reads, falling back to a read lock).
+ */
+public class ChunkMap{
+	private static final int BITS = 21;
+	private static final long MASK = (1L << BITS)-1;
+
+	private static class Table{
+		private final long[] keys;
+		private final Chunk[] values;
+
+		public Table(int capacity){
+			this.keys = new long[capacity];
+			this.values = new Chunk[capacity];
+		}
+	}
+
+	private volatile Table table = new Table(64);
+	private int size;
+	private StampedLock lock = new StampedLock();
+
+	public static long pack(int x, int y, int z){
+		return ((x & MASK) << (2*BITS)) | ((y & MASK) << BITS) | (z & MASK);
+	}
+
+	public static int unpackX(long key){
+		return (int)(key << (64-3*BITS) >> (64-BITS));
+	}
+
+	public static int unpackY(long key){
+		return (int)(key << (64-2*BITS) >> (64-BITS));
+	}
+
+	public static int unpackZ(long key){
+		return (int)(key << (64-BITS) >> (64-BITS));
+	}
+
+	public Chunk get(int x, int y, int z){
+		long key = pack(x, y, z);
+		long stamp = this.lock.tryOptimisticRead();
+		Chunk chunk = find(this.table, key);
+		if (!this.lock.validate(stamp)){
+			stamp = this.lock.readLock();
+			try {
+				chunk = find(this.table, key);
+			} finally {
+				this.lock.unlockRead(stamp);
+			}
+		}
+		return chunk;
+	}
+
+	public void put(int x, int y, int z, Chunk chunk){
+		long key = pack(x, y, z);
+		long stamp = this.lock.writeLock();
+		try {
+			if ((this.size+1)*2 > this.table.keys.length){
+				rehash(this.table.keys.length*2);
+			}
+			Table t = this.table;
+			int mask = t.keys.length-1;
+			int i = hash(key) & mask;
+			while (t.values[i] != null){
+				if (t.keys[i] == key){
+					t.values[i] = chunk;
+					return;
+				}
+				i = (i+1) & mask;
+			}
+			t.keys[i] = key;
+			t.values[i] = chunk;
+			this.size++;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void remove(int x, int y, int z){
+		long key = pack(x, y, z);
+		long stamp = this.lock.writeLock();
+		try {
+			Table t = this.table;
+			int mask = t.keys.length-1;
+			int i = hash(key) & mask;
+			while (t.values[i] != null && t.keys[i] != key){
+				i = (i+1) & mask;
+			}
+			if (t.values[i] == null) return;
+
+			// Shift back the following entries so that no probe chain gets broken
+			int hole = i;
+			int j = (i+1) & mask;
+			while (t.values[j] != null){
+				int home = hash(t.keys[j]) & mask;
+				if (((j-home) & mask) >= ((j-hole) & mask)){
+					t.keys[hole] = t.keys[j];
+					t.values[hole] = t.values[j];
+					hole = j;
+				}
+				j = (j+1) & mask;
+			}
+			t.values[hole] = null;
+			this.size--;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void clear(){
+		long stamp = this.lock.writeLock();
+		try {
+			this.table = new Table(64);
+			this.size = 0;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public int size(){
+		return this.size;
+	}
+
+	// Returns a snapshot of the chunks
+	public List<Chunk> values(){
+		long stamp = this.lock.readLock();
+		try {
+			List<Chunk> output = new ArrayList<>(this.size);
+			for (Chunk chunk : this.table.values){
+				if (chunk != null) output.add(chunk);
+			}
+			return output;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	private void rehash(int capacity){
+		Table old = this.table;
+		Table t = new Table(capacity);
+		int mask = capacity-1;
+		for (int k = 0; k < old.keys.length; k++){
+			if (old.values[k] != null){
+				int i = hash(old.keys[k]) & mask;
+				while (t.values[i] != null){
+					i = (i+1) & mask;
+				}
+				t.keys[i] = old.keys[k];
+				t.values[i] = old.values[k];
+			}
+		}
+		this.table = t;
+	}
+
+	private static Chunk find(Table t, long key){
+		int mask = t.keys.length-1;
+		int i = hash(key) & mask;
+		for (int n = 0; n < t.keys.length; n++){
+			Chunk chunk = t.values[i];
+			if (chunk == null) return null;
+			if (t.keys[i] == key) return chunk;
+			i = (i+1) & mask;
+		}
+		return null;
+	}
+
+	// The table index takes the low bits, every bit of the key must reach them (murmur3 finalizer)
+	private static int hash(long key){
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int)h;
+	}
+}
@@ -0,0 +1,533 @@
+package com.orangomango.blockworld.model;
+
+import javafx.geometry.Point3D;
+import javafx.geometry.Point2D;
+import javafx.scene.image.Image;
+
+import java.util.*;
+
+import com.orangomango.rendering3d.model.Mesh;
+
+/**
+ * Builds the meshes of a chunk: one for the opaque blocks and one for the transparent blocks.
+ * Occluded faces are dropped at build time and coplanar faces of full blocks with the same
+ * type can be merged into bigger quads (greedy meshing, see GREEDY_MESHING).
+ * The visible faces of each block are kept by the chunk so that only the blocks touched by a
+ * change need to be culled again.
+ */
+public class ChunkMesher{
+	// Merged quads repeat the block texture using texture coordinates greater than 1, the engine is not known to wrap them.
+	// Off by default, faces are then still culled and merged into the chunk mesh, one quad per block face (-Dblockworld.greedyMeshing=true)
+	public static final boolean GREEDY_MESHING = Boolean.getBoolean("blockworld.greedyMeshing");
+
+	private static final int[] FACES = {BlockMesh.FACE_FRONT, BlockMesh.FACE_RIGHT, BlockMesh.FACE_BACK, BlockMesh.FACE_LEFT, BlockMesh.FACE_DOWN, BlockMesh.FACE_TOP};
+	static final int[][] NORMALS = {{0, 0, -1}, {1, 0, 0}, {0, 0, 1}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}};
+	static final int[] OPPOSITE = {2, 3, 0, 1, 5, 4};
+	private static final int TOP = 5;
+	private static final int LIQUID_SURFACE = 1 << 6; // Liquid blocks with no liquid above are lowered
+
+	// Also used by LodTerrain for the far terrain
+	static class MeshBuilder{
+		private List<Point3D> vertices = new ArrayList<>();
+		private List<Point2D> tex = new ArrayList<>();
+		private List<int[]> faces = new ArrayList<>();
+		private List<int[]> facesTex = new ArrayList<>();
+		private List<Integer> imageIndices = new ArrayList<>();
+		private List<Integer> lights = new ArrayList<>();
+		private List<Image> images = new ArrayList<>();
+		private Map<Image, Integer> imagesIdx = new IdentityHashMap<>();
+
+		private int getImageIndex(Image image){
+			Integer idx = this.imagesIdx.get(image);
+			if (idx == null){
+				idx = this.images.size();
+				this.images.add(image);
+				this.imagesIdx.put(image, idx);
+			}
+			return idx;
+		}
+
+		// Same vertex order as BlockMesh, a-b-c-d with the triangles (a, b, c) and (a, c, d)
+		public void addQuad(double[] a, double[] b, double[] c, double[] d, double uSize, double vSize, int image, int light){
+			int v = this.vertices.size();
+			int t = this.tex.size();
+			this.vertices.add(new Point3D(a[0], a[1], a[2]));
+			this.vertices.add(new Point3D(b[0], b[1], b[2]));
+			this.vertices.add(new Point3D(c[0], c[1], c[2]));
+			this.vertices.add(new Point3D(d[0], d[1], d[2]));
+			this.tex.add(new Point2D(0, 0));
+			this.tex.add(new Point2D(0, vSize));
+			this.tex.add(new Point2D(uSize, vSize));
+			this.tex.add(new Point2D(uSize, 0));
+			this.faces.add(new int[]{v, v+1, v+2});
+			this.faces.add(new int[]{v, v+2, v+3});
+			this.facesTex.add(new int[]{t, t+1, t+2});
+			this.facesTex.add(new int[]{t, t+2, t+3});
+			this.imageIndices.add(image);
+			this.imageIndices.add(image);
+			this.lights.add(light);
+			this.lights.add(light);
+		}
+
+		public int getTriangles(){
+			return this.faces.size();
+		}
+
+		// Face of the box from s to e, textured like the faces of the block
+		public void addCubeFace(int id, int face, double[] s, double[] e, int light){
+			BlockMesh blockMesh = Atlas.MAIN_ATLAS.getBlockMesh(id);
+			int imageIndex = blockMesh.getFaceImageIndex(face);
+			int image = imageIndex == -1 ? -1 : getImageIndex(blockMesh.getImages()[imageIndex]);
+
+			// Corners as defined in BlockMesh.makeElement
+			double[] a, b, c, d;
+			switch (face){
+				case BlockMesh.FACE_FRONT -> {
+					a = new double[]{s[0], s[1], s[2]}; b = new double[]{s[0], e[1], s[2]}; c = new double[]{e[0], e[1], s[2]}; d = new double[]{e[0], s[1], s[2]};
+				}
+				case BlockMesh.FACE_RIGHT -> {
+					a = new double[]{e[0], s[1], s[2]}; b = new double[]{e[0], e[1], s[2]}; c = new double[]{e[0], e[1], e[2]}; d = new double[]{e[0], s[1], e[2]};
+				}
+				case BlockMesh.FACE_BACK -> {
+					a = new double[]{e[0], s[1], e[2]}; b = new double[]{e[0], e[1], e[2]}; c = new double[]{s[0], e[1], e[2]}; d = new double[]{s[0], s[1], e[2]};
+				}
+				case BlockMesh.FACE_LEFT -> {
+					a = new double[]{s[0], s[1], e[2]}; b = new double[]{s[0], e[1], e[2]}; c = new double[]{s[0], e[1], s[2]}; d = new double[]{s[0], s[1], s[2]};
+				}
+				case BlockMesh.FACE_DOWN -> {
+					a = new double[]{s[0], e[1], s[2]}; b = new double[]{s[0], e[1], e[2]}; c = new double[]{e[0], e[1], e[2]}; d = new double[]{e[0], e[1], s[2]};
+				}
+				default -> {
+					a = new double[]{s[0], s[1], e[2]}; b = new double[]{s[0], s[1], s[2]}; c = new double[]{e[0], s[1], s[2]}; d = new double[]{e[0], s[1], e[2]};
+				}
+			}
+			// Texture coordinates stay within 0..1 unless textures repeat, bigger quads (see LodTerrain) stretch the texture
+			if (GREEDY_MESHING){
+				addQuad(a, b, c, d, distance(a, d), distance(a, b), image, light);
+			} else {
+				addQuad(a, b, c, d, 1, 1, image, light);
+			}
+		}
+
+		public Mesh build(Chunk chunk, boolean transparent){
+			Mesh mesh = build(chunk.getX()*Chunk.CHUNK_SIZE, chunk.getY()*Chunk.CHUNK_SIZE, chunk.getZ()*Chunk.CHUNK_SIZE, transparent, chunk.getWorld().getSkyLight());
+			if (mesh != null){
+				mesh.setSkipCondition(cam -> !chunk.isVisible()); // See ChunkManager.updateVisibility
+			}
+			return mesh;
+		}
+
+		public Mesh build(double x, double y, double z, boolean transparent, int skyLight){
+			if (this.faces.isEmpty()) return null;
+			Mesh mesh = new Mesh(this.vertices.toArray(new Point3D[this.vertices.size()]), this.faces.toArray(new int[this.faces.size()][3]), null, this.images.toArray(new Image[this.images.size()]), this.imageIndices.stream().mapToInt(i -> i.intValue()).toArray(), this.tex.toArray(new Point2D[this.tex.size()]), this.facesTex.toArray(new int[this.facesTex.size()][3]));
+			mesh.translate(x, y, z);
+			mesh.build();
+			mesh.setTransparentProcessing(transparent);
+			mesh.setShowAllFaces(transparent);
+			for (int i = 0; i < mesh.getTriangles().length; i++){
+				mesh.getTriangles()[i].setLight(LightEngine.getIntensity(this.lights.get(i), skyLight));
+			}
+			return mesh;
+		}
+
+		public byte[] getLights(){
+			byte[] output = new byte[this.lights.size()];
+			for (int i = 0; i < output.length; i++){
+				output[i] = (byte)this.lights.get(i).intValue();
+			}
+			return output;
+		}
+	}
+
+	/**
+	 * Copy of the layers of the neighbours touching a chunk, taken on the render thread so that a loader
+	 * thread can mesh the chunk without reading the other chunks while they change.
+	 * Missing neighbours are seen like World sees chunks that are not loaded: air with full sky light.
+	 */
+	public static class Borders{
+		private Chunk[] neighbours = new Chunk[NORMALS.length];
+		private int[] versions = new int[NORMALS.length];
+		private int[][] ids = new int[NORMALS.length][];
+		private byte[][] lights = new byte[NORMALS.length][];
+
+		public Borders(World world, int chunkX, int chunkY, int chunkZ){
+			final int size = Chunk.CHUNK_SIZE;
+			int[] pos = new int[3];
+			for (int f = 0; f < NORMALS.length; f++){
+				Chunk other = world.getChunkAt(chunkX+NORMALS[f][0], chunkY+NORMALS[f][1], chunkZ+NORMALS[f][2]);
+				if (other == null) continue;
+				int normalAxis = NORMALS[f][0] != 0 ? 0 : (NORMALS[f][1] != 0 ? 1 : 2);
+				int uAxis = normalAxis == 0 ? 1 : 0;
+				int vAxis = normalAxis == 2 ? 1 : 2;
+				this.neighbours[f] = other;
+				this.versions[f] = other.getVersion();
+				this.ids[f] = new int[size*size];
+				this.lights[f] = new byte[size*size];
+				pos[normalAxis] = NORMALS[f][normalAxis] > 0 ? 0 : size-1;
+				for (int u = 0; u < size; u++){
+					for (int v = 0; v < size; v++){
+						pos[uAxis] = u;
+						pos[vAxis] = v;
+						this.ids[f][u+v*size] = other.getBlockId(pos[0], pos[1], pos[2]);
+						this.lights[f][u+v*size] = (byte)other.getLight(pos[0], pos[1], pos[2]);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sides whose neighbour was loaded, unloaded or changed since the copy was taken
+		 * @return bit f is set for the side NORMALS[f]
+		 */
+		public int getChangedSides(World world, int chunkX, int chunkY, int chunkZ){
+			int output = 0;
+			for (int f = 0; f < NORMALS.length; f++){
+				Chunk other = world.getChunkAt(chunkX+NORMALS[f][0], chunkY+NORMALS[f][1], chunkZ+NORMALS[f][2]);
+				if (other != this.neighbours[f] || (other != null && other.getVersion() != this.versions[f])){
+					output |= 1 << f;
+				}
+			}
+			return output;
+		}
+
+		// Block id next to the chunk, the position is outside of the chunk along one axis only
+		private int getId(int x, int y, int z){
+			int f = getSide(x, y, z);
+			return this.ids[f] == null ? 0 : this.ids[f][getLayerIndex(f, x, y, z)];
+		}
+
+		private int getLight(int x, int y, int z){
+			int f = getSide(x, y, z);
+			return this.lights[f] == null ? Block.MAX_LIGHT_INTENSITY << 4 : this.lights[f][getLayerIndex(f, x, y, z)] & 0xFF;
+		}
+
+		private static int getSide(int x, int y, int z){
+			if (x < 0) return 3;
+			if (x >= Chunk.CHUNK_SIZE) return 1;
+			if (z < 0) return 0;
+			if (z >= Chunk.CHUNK_SIZE) return 2;
+			return y < 0 ? 5 : 4;
+		}
+
+		private static int getLayerIndex(int f, int x, int y, int z){
+			int[] pos = {x, y, z};
+			int normalAxis = NORMALS[f][0] != 0 ? 0 : (NORMALS[f][1] != 0 ? 1 : 2);
+			int uAxis = normalAxis == 0 ? 1 : 0;
+			int vAxis = normalAxis == 2 ? 1 : 2;
+			return pos[uAxis]+pos[vAxis]*Chunk.CHUNK_SIZE;
+		}
+	}
+
+	private Chunk chunk;
+	private World world;
+	private Borders borders;
+	private MeshBuilder opaque = new MeshBuilder();
+	private MeshBuilder transparent = new MeshBuilder();
+	private int perBlockTriangles;
+	private List<byte[]> meshLights = new ArrayList<>();
+
+	public ChunkMesher(Chunk chunk){
+		this(chunk, null);
+	}
+
+	/**
+	 * @param borders the neighbours to use instead of the world, needed away from the render thread
+	 */
+	public ChunkMesher(Chunk chunk, Borders borders){
+		this.chunk = chunk;
+		this.world = chunk.getWorld();
+		this.borders = borders;
+	}
+
+	/**
+	 * Cull all the blocks of the chunk
+	 * @param faces visibility of each block, bit f is set when the face FACES[f] is visible
+	 * @return the number of culled blocks
+	 */
+	public int cull(byte[] faces){
+		final int size = Chunk.CHUNK_SIZE;
+		int count = 0;
+		for (int x = 0; x < size; x++){
+			for (int y = 0; y < size; y++){
+				for (int z = 0; z < size; z++){
+					count += cullBlock(faces, x, y, z);
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Cull all the faces of one block
+	 * @return 1 if the block was culled, 0 if it's air
+	 */
+	public int cullBlock(byte[] faces, int x, int y, int z){
+		int id = this.chunk.getBlockId(x, y, z);
+		int index = x+(y*Chunk.CHUNK_SIZE+z)*Chunk.CHUNK_SIZE;
+		if (id == 0){
+			faces[index] = 0;
+			return 0;
+		}
+		int visible = 0;
+		for (int f = 0; f < FACES.length; f++){
+			visible |= cullFace(id, x, y, z, f);
+		}
+		faces[index] = (byte)(visible | cullLiquid(id, x, y, z));
+		return 1;
+	}
+
+	/**
+	 * Cull only the faces of the blocks touching one side of the chunk
+	 * @param f the side, index in FACES
+	 * @return the number of culled blocks
+	 */
+	public int cullBorder(byte[] faces, int f){
+		final int size = Chunk.CHUNK_SIZE;
+		int normalAxis = NORMALS[f][0] != 0 ? 0 : (NORMALS[f][1] != 0 ? 1 : 2);
+		int uAxis = normalAxis == 0 ? 1 : 0;
+		int vAxis = normalAxis == 2 ? 1 : 2;
+		int[] pos = new int[3];
+		pos[normalAxis] = NORMALS[f][normalAxis] > 0 ? size-1 : 0;
+		int count = 0;
+		for (int u = 0; u < size; u++){
+			for (int v = 0; v < size; v++){
+				pos[uAxis] = u;
+				pos[vAxis] = v;
+				int id = this.chunk.getBlockId(pos[0], pos[1], pos[2]);
+				if (id == 0) continue;
+				int index = getIndex(pos);
+				int visible = (faces[index] & ~(1 << f)) | cullFace(id, pos[0], pos[1], pos[2], f);
+				if (f == TOP){
+					visible = (visible & ~LIQUID_SURFACE) | cullLiquid(id, pos[0], pos[1], pos[2]);
+				}
+				faces[index] = (byte)visible;
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Check if a side of a chunk is seen by its neighbour like a chunk that is not loaded,
+	 * only air with full sky light. Then loading or unloading the chunk doesn't change the neighbour.
+	 * @param f the side, index in FACES
+	 */
+	public static boolean isOpenBorder(Chunk chunk, int f){
+		final int size = Chunk.CHUNK_SIZE;
+		int normalAxis = NORMALS[f][0] != 0 ? 0 : (NORMALS[f][1] != 0 ? 1 : 2);
+		int uAxis = normalAxis == 0 ? 1 : 0;
+		int vAxis = normalAxis == 2 ? 1 : 2;
+		int[] pos = new int[3];
+		pos[normalAxis] = NORMALS[f][normalAxis] > 0 ? size-1 : 0;
+		for (int u = 0; u < size; u++){
+			for (int v = 0; v < size; v++){
+				pos[uAxis] = u;
+				pos[vAxis] = v;
+				if (chunk.getBlockId(pos[0], pos[1], pos[2]) != 0 || chunk.getLight(pos[0], pos[1], pos[2]) != Block.MAX_LIGHT_INTENSITY << 4) return false;
+			}
+		}
+		return true;
+	}
+
+	private int cullFace(int id, int x, int y, int z, int f){
+		int neighbour = getId(x+NORMALS[f][0], y+NORMALS[f][1], z+NORMALS[f][2]);
+		return Block.isFaceHidden(id, neighbour, FACES[f], FACES[OPPOSITE[f]]) ? 0 : 1 << f;
+	}
+
+	private int cullLiquid(int id, int x, int y, int z){
+		if (Atlas.MAIN_ATLAS.isLiquid(id)){
+			int top = getId(x, y-1, z);
+			if (top == 0 || !Atlas.MAIN_ATLAS.isLiquid(top)){
+				return LIQUID_SURFACE;
+			}
+		}
+		return 0;
+	}
+
+	public List<Mesh> build(byte[] faces){
+		final int size = Chunk.CHUNK_SIZE;
+		int[][] masks = new int[FACES.length][size*size*size];
+
+		for (int x = 0; x < size; x++){
+			for (int y = 0; y < size; y++){
+				for (int z = 0; z < size; z++){
+					int id = this.chunk.getBlockId(x, y, z);
+					if (id == 0) continue;
+					int index = x+(y*size+z)*size;
+					BlockMesh blockMesh = Atlas.MAIN_ATLAS.getBlockMesh(id);
+					boolean liquidSurface = (faces[index] & LIQUID_SURFACE) != 0;
+
+					if (blockMesh.isCube() && !liquidSurface){
+						for (int f = 0; f < FACES.length; f++){
+							if ((faces[index] & (1 << f)) != 0){
+								// A face is lit by the block in front of it, only faces with the same type and light are merged
+								int light = getLight(x+NORMALS[f][0], y+NORMALS[f][1], z+NORMALS[f][2]);
+								masks[f][index] = (light << 16) | id;
+								this.perBlockTriangles += 2;
+							}
+						}
+					} else {
+						addBlock(id, blockMesh, x, y, z, liquidSurface ? Block.LIQUID_OFFSET : 0, faces[index], this.chunk.getLight(x, y, z));
+					}
+				}
+			}
+		}
+
+		for (int f = 0; f < FACES.length; f++){
+			addFaces(f, masks[f]);
+		}
+
+		List<Mesh> output = new ArrayList<>();
+		Mesh mesh = this.opaque.build(this.chunk, false);
+		if (mesh != null){
+			output.add(mesh);
+			this.meshLights.add(this.opaque.getLights());
+		}
+		mesh = this.transparent.build(this.chunk, true);
+		if (mesh != null){
+			output.add(mesh);
+			this.meshLights.add(this.transparent.getLights());
+		}
+		return output;
+	}
+
+	public int getTriangles(){
+		return this.opaque.getTriangles()+this.transparent.getTriangles();
+	}
+
+	// Packed light of the triangles of each mesh returned by build, see LightEngine
+	public List<byte[]> getMeshLights(){
+		return this.meshLights;
+	}
+
+	// The number of triangles that one mesh per block (with hidden faces) would need
+	public int getPerBlockTriangles(){
+		return this.perBlockTriangles;
+	}
+
+	// Greedy merge of the visible faces facing the same direction, one slice at a time
+	private void addFaces(int f, int[] mask){
+		final int size = Chunk.CHUNK_SIZE;
+		int normalAxis = NORMALS[f][0] != 0 ? 0 : (NORMALS[f][1] != 0 ? 1 : 2);
+		int uAxis = normalAxis == 0 ? 1 : 0;
+		int vAxis = normalAxis == 2 ? 1 : 2;
+		int[] pos = new int[3];
+
+		for (int n = 0; n < size; n++){
+			pos[normalAxis] = n;
+			for (int v = 0; v < size; v++){
+				for (int u = 0; u < size; u++){
+					pos[uAxis] = u;
+					pos[vAxis] = v;
+					int key = mask[getIndex(pos)];
+					if (key == 0) continue;
+
+					// Grow along u, then along v while the whole row matches
+					int width = 1;
+					int height = 1;
+					if (GREEDY_MESHING){
+						while (u+width < size && maskAt(mask, pos, uAxis, u+width, vAxis, v) == key) width++;
+						boolean grow = true;
+						while (v+height < size && grow){
+							for (int k = 0; k < width; k++){
+								if (maskAt(mask, pos, uAxis, u+k, vAxis, v+height) != key){
+									grow = false;
+									break;
+								}
+							}
+							if (grow) height++;
+						}
+					}
+					for (int j = 0; j < height; j++){
+						for (int k = 0; k < width; k++){
+							pos[uAxis] = u+k;
+							pos[vAxis] = v+j;
+							mask[getIndex(pos)] = 0;
+						}
+					}
+
+					double[] start = new double[3];
+					double[] end = new double[3];
+					start[normalAxis] = n;
+					end[normalAxis] = n+1;
+					start[uAxis] = u;
+					end[uAxis] = u+width;
+					start[vAxis] = v;
+					end[vAxis] = v+height;
+					addCubeFace(key & 0xFFFF, FACES[f], start, end, key >>> 16);
+				}
+			}
+		}
+	}
+
+	private void addCubeFace(int id, int face, double[] s, double[] e, int light){
+		MeshBuilder builder = Atlas.MAIN_ATLAS.isTransparent(id) ? this.transparent : this.opaque;
+		builder.addCubeFace(id, face, s, e, light);
+	}
+
+	// Blocks that are not full cubes keep their own geometry, only the hidden faces are removed
+	private void addBlock(int id, BlockMesh blockMesh, int x, int y, int z, double yOffset, int visible, int light){
+		MeshBuilder builder = Atlas.MAIN_ATLAS.isTransparent(id) ? this.transparent : this.opaque;
+		Set<Integer> hidden = new HashSet<>();
+		for (int f = 0; f < FACES.length; f++){
+			if ((visible & (1 << f)) == 0){
+				List<Integer> idx = blockMesh.getCullingIdx().get(FACES[f]);
+				if (idx != null) hidden.addAll(idx);
+			}
+		}
+
+		int v = builder.vertices.size();
+		int t = builder.tex.size();
+		for (Point3D vertex : blockMesh.getVertices()){
+			double vy = yOffset != 0 && vertex.getY() == 0 ? yOffset : vertex.getY();
+			builder.vertices.add(new Point3D(vertex.getX()+x, vy+y, vertex.getZ()+z));
+		}
+		builder.tex.addAll(Arrays.asList(blockMesh.getTex()));
+
+		int[][] facesPoints = blockMesh.getFacesPoints();
+		int[][] facesTex = blockMesh.getFacesTex();
+		for (int i = 0; i < facesPoints.length; i++){
+			if (hidden.contains(i)) continue;
+			builder.faces.add(new int[]{facesPoints[i][0]+v, facesPoints[i][1]+v, facesPoints[i][2]+v});
+			builder.facesTex.add(new int[]{facesTex[i][0]+t, facesTex[i][1]+t, facesTex[i][2]+t});
+			int imageIndex = blockMesh.getImageIndices()[i];
+			builder.imageIndices.add(imageIndex == -1 ? -1 : builder.getImageIndex(blockMesh.getImages()[imageIndex]));
+			builder.lights.add(light);
+			this.perBlockTriangles++;
+		}
+	}
+
+	private int getId(int x, int y, int z){
+		if (x >= 0 && y >= 0 && z >= 0 && x < Chunk.CHUNK_SIZE && y < Chunk.CHUNK_SIZE && z < Chunk.CHUNK_SIZE){
+			return this.chunk.getBlockId(x, y, z);
+		} else if (this.borders != null){
+			return this.borders.getId(x, y, z);
+		} else {
+			return this.world.getBlockIdAt(x+this.chunk.getX()*Chunk.CHUNK_SIZE, y+this.chunk.getY()*Chunk.CHUNK_SIZE, z+this.chunk.getZ()*Chunk.CHUNK_SIZE);
+		}
+	}
+
+	private int getLight(int x, int y, int z){
+		if (x >= 0 && y >= 0 && z >= 0 && x < Chunk.CHUNK_SIZE && y < Chunk.CHUNK_SIZE && z < Chunk.CHUNK_SIZE){
+			return this.chunk.getLight(x, y, z);
+		} else if (this.borders != null){
+			return this.borders.getLight(x, y, z);
+		} else {
+			return this.world.getLightAt(x+this.chunk.getX()*Chunk.CHUNK_SIZE, y+this.chunk.getY()*Chunk.CHUNK_SIZE, z+this.chunk.getZ()*Chunk.CHUNK_SIZE);
+		}
+	}
+
+	private static int maskAt(int[] mask, int[] pos, int uAxis, int u, int vAxis, int v){
+		pos[uAxis] = u;
+		pos[vAxis] = v;
+		return mask[getIndex(pos)];
+	}
+
+	private static int getIndex(int[] pos){
+		return pos[0]+(pos[1]*Chunk.CHUNK_SIZE+pos[2])*Chunk.CHUNK_SIZE;
+	}
+
+	private static double distance(double[] a, double[] b){
+		return Math.abs(a[0]-b[0])+Math.abs(a[1]-b[1])+Math.abs(a[2]-b[2]);
+	}
+}
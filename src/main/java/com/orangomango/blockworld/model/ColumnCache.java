@@ -0,0 +1,101 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+
+import com.orangomango.blockworld.util.PerlinNoise;
+
+/**
+ * Terrain values that only depend on (x, z), computed once per chunk column
+ * and shared by every chunk stacked in that column.
+ * The least recently used columns are evicted once the cache is full.
+ */
+public class ColumnCache{
+	private static final int CAPACITY = Math.max(64, 4096*16/(Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE)); // Enough for the columns of the far terrain, see LodTerrain
+	private static final float FREQUENCY = 0.1575f;
+	private static final float BIOME_FREQUENCY = 0.05f;
+
+	private PerlinNoise noise;
+	private boolean superFlat;
+	private int hits, misses;
+	private Map<Long, Column> columns = new LinkedHashMap<>(64, 0.75f, true){
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Column> eldest){
+			return size() > CAPACITY;
+		}
+	};
+
+	public static class Column{
+		private int[] heights = new int[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+		private float[] biomes = new float[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+		private int[] surfaces = new int[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+
+		// First solid y coordinate of the column
+		public int getHeight(int x, int z){
+			return this.heights[x+z*Chunk.CHUNK_SIZE];
+		}
+
+		public float getBiome(int x, int z){
+			return this.biomes[x+z*Chunk.CHUNK_SIZE];
+		}
+
+		// Block id at the surface, when it is not replaced by sand
+		public int getSurface(int x, int z){
+			return this.surfaces[x+z*Chunk.CHUNK_SIZE];
+		}
+	}
+
+	public ColumnCache(int seed, boolean superFlat){
+		this.noise = new PerlinNoise(seed);
+		this.superFlat = superFlat;
+	}
+
+	public Column get(int chunkX, int chunkZ){
+		long key = ChunkMap.pack(chunkX, 0, chunkZ);
+		synchronized (this){
+			Column column = this.columns.get(key);
+			if (column != null){
+				this.hits++;
+				return column;
+			}
+			this.misses++;
+		}
+
+		// Computed outside of the lock, two threads may compute the same column
+		Column column = compute(chunkX, chunkZ);
+		synchronized (this){
+			Column other = this.columns.putIfAbsent(key, column);
+			return other == null ? column : other;
+		}
+	}
+
+	private Column compute(int chunkX, int chunkZ){
+		Column column = new Column();
+		int grass = Atlas.MAIN_ATLAS.getBlockId("grass");
+		int dirt = Atlas.MAIN_ATLAS.getBlockId("dirt");
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+				float n = (this.noise.noise((i+chunkX*Chunk.CHUNK_SIZE)*FREQUENCY, 0, (k+chunkZ*Chunk.CHUNK_SIZE)*FREQUENCY)+1)/2;
+				float b = (this.noise.noise((i+chunkX*Chunk.CHUNK_SIZE)*BIOME_FREQUENCY, 0, (k+chunkZ*Chunk.CHUNK_SIZE)*BIOME_FREQUENCY)+1)/2;
+				int h = Math.round(n*(16-1))+Chunk.HEIGHT_LIMIT; // air column
+				if (this.superFlat) h = Chunk.HEIGHT_LIMIT+1;
+				int index = i+k*Chunk.CHUNK_SIZE;
+				column.heights[index] = h;
+				column.biomes[index] = b;
+				column.surfaces[index] = h <= Chunk.WATER_HEIGHT ? grass : dirt;
+			}
+		}
+		return column;
+	}
+
+	public synchronized void clear(){
+		this.columns.clear();
+	}
+
+	public synchronized int getHits(){
+		return this.hits;
+	}
+
+	public synchronized int getMisses(){
+		return this.misses;
+	}
+}
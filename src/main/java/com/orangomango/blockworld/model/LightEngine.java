@@ -0,0 +1,306 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+
+/**
+ * Flood fill of the block light (emitted by blocks like torches) and of the sky light.
+ * Both are stored by the chunks in one byte per block: sky light in the high nibble and block light in the low nibble.
+ * Sky light at full intensity goes down without losing intensity, any other step loses one level.
+ */
+public class LightEngine{
+	public static final int BLOCK = 0;
+	public static final int SKY = 1;
+	private static final int DOWN = 4; // Index in ChunkMesher.NORMALS
+
+	private World world;
+	private IntQueue addQueue = new IntQueue(); // Used only from the render thread
+	private IntQueue removeQueue = new IntQueue();
+	private long updatedBlocks;
+
+	// Queue of x, y, z, level entries
+	private static class IntQueue{
+		private int[] data = new int[256];
+		private int head, tail;
+
+		public void push(int x, int y, int z, int level){
+			if (this.tail+4 > this.data.length){
+				if (this.head > 0){
+					System.arraycopy(this.data, this.head, this.data, 0, this.tail-this.head);
+					this.tail -= this.head;
+					this.head = 0;
+				}
+				if (this.tail+4 > this.data.length){
+					this.data = Arrays.copyOf(this.data, this.data.length*2);
+				}
+			}
+			this.data[this.tail++] = x;
+			this.data[this.tail++] = y;
+			this.data[this.tail++] = z;
+			this.data[this.tail++] = level;
+		}
+
+		public boolean isEmpty(){
+			return this.head == this.tail;
+		}
+
+		public int pop(){
+			int value = this.data[this.head++];
+			if (this.head == this.tail){
+				this.head = 0;
+				this.tail = 0;
+			}
+			return value;
+		}
+	}
+
+	public LightEngine(World world){
+		this.world = world;
+	}
+
+	/**
+	 * Light a chunk using only its own blocks. Light coming from the neighbours is added
+	 * by propagateBorders once the chunk is in the world, so this can run on a loader thread.
+	 */
+	public void initChunk(Chunk chunk){
+		final int size = Chunk.CHUNK_SIZE;
+		byte[] light = chunk.getLightData();
+		Arrays.fill(light, (byte)0);
+		IntQueue skyQueue = new IntQueue();
+		IntQueue blockQueue = new IntQueue();
+
+		// The chunk above may not be loaded yet, assume the sky is visible above the terrain surface
+		ColumnCache.Column column = (chunk.getY()+1)*size > Chunk.HEIGHT_LIMIT ? this.world.getColumns().get(chunk.getX(), chunk.getZ()) : null;
+		for (int x = 0; x < size; x++){
+			for (int z = 0; z < size; z++){
+				if (column == null || chunk.getY()*size <= column.getHeight(x, z)){
+					for (int y = 0; y < size && !isOpaque(chunk.getBlockId(x, y, z)); y++){
+						light[getIndex(x, y, z)] |= (byte)(Block.MAX_LIGHT_INTENSITY << 4);
+						skyQueue.push(x+chunk.getX()*size, y+chunk.getY()*size, z+chunk.getZ()*size, 0);
+					}
+				}
+				for (int y = 0; y < size; y++){
+					int emission = Atlas.MAIN_ATLAS.getLightEmission(chunk.getBlockId(x, y, z));
+					if (emission > 0){
+						light[getIndex(x, y, z)] |= (byte)emission;
+						blockQueue.push(x+chunk.getX()*size, y+chunk.getY()*size, z+chunk.getZ()*size, 0);
+					}
+				}
+			}
+		}
+
+		propagate(skyQueue, SKY, chunk, false);
+		propagate(blockQueue, BLOCK, chunk, false);
+	}
+
+	/**
+	 * Exchange light with the loaded neighbours of a chunk that was just added to the world
+	 */
+	public void propagateBorders(Chunk chunk){
+		final int size = Chunk.CHUNK_SIZE;
+		for (int channel = BLOCK; channel <= SKY; channel++){
+			for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+				int[] dir = ChunkMesher.NORMALS[f];
+				Chunk other = this.world.getChunkAt(chunk.getX()+dir[0], chunk.getY()+dir[1], chunk.getZ()+dir[2]);
+				if (other == null) continue;
+
+				int normalAxis = dir[0] != 0 ? 0 : (dir[1] != 0 ? 1 : 2);
+				int uAxis = normalAxis == 0 ? 1 : 0;
+				int vAxis = normalAxis == 2 ? 1 : 2;
+				int[] pos = new int[3];
+				pos[normalAxis] = dir[normalAxis] > 0 ? size-1 : 0;
+				for (int u = 0; u < size; u++){
+					for (int v = 0; v < size; v++){
+						pos[uAxis] = u;
+						pos[vAxis] = v;
+						int x = pos[0]+chunk.getX()*size;
+						int y = pos[1]+chunk.getY()*size;
+						int z = pos[2]+chunk.getZ()*size;
+						int nx = x+dir[0];
+						int ny = y+dir[1];
+						int nz = z+dir[2];
+
+						// Full sky light below a block that does not have it was only guessed by initChunk
+						if (channel == SKY && dir[1] != 0){
+							int upperY = Math.min(y, ny);
+							int lowerY = Math.max(y, ny);
+							int lowerX = lowerY == y ? x : nx;
+							int lowerZ = lowerY == y ? z : nz;
+							if (getLight(lowerX, lowerY, lowerZ, SKY) == Block.MAX_LIGHT_INTENSITY && getLight(lowerX, upperY, lowerZ, SKY) < Block.MAX_LIGHT_INTENSITY){
+								setLight(lowerX, lowerY, lowerZ, SKY, 0);
+								this.removeQueue.push(lowerX, lowerY, lowerZ, Block.MAX_LIGHT_INTENSITY);
+							}
+						}
+						this.addQueue.push(x, y, z, 0);
+						this.addQueue.push(nx, ny, nz, 0);
+					}
+				}
+			}
+			unpropagate(channel);
+			propagate(this.addQueue, channel, null, true);
+		}
+	}
+
+	/**
+	 * Relight the region affected by a block change. Must be called after the block was changed.
+	 */
+	public void onBlockChanged(int x, int y, int z){
+		if (getChunk(x, y, z, null) == null) return;
+		int id = this.world.getBlockIdAt(x, y, z);
+		for (int channel = BLOCK; channel <= SKY; channel++){
+			int old = getLight(x, y, z, channel);
+			if (old > 0){
+				setLight(x, y, z, channel, 0);
+				this.removeQueue.push(x, y, z, old);
+			}
+			unpropagate(channel);
+
+			int source = 0;
+			if (channel == BLOCK){
+				source = Atlas.MAIN_ATLAS.getLightEmission(id);
+			} else if (!isOpaque(id) && isOpenSky(x, y, z)){
+				source = Block.MAX_LIGHT_INTENSITY;
+			}
+			if (source > 0){
+				setLight(x, y, z, channel, source);
+				this.addQueue.push(x, y, z, 0);
+			}
+			if (!isOpaque(id)){
+				// The neighbours flow back into the block
+				for (int[] dir : ChunkMesher.NORMALS){
+					this.addQueue.push(x+dir[0], y+dir[1], z+dir[2], 0);
+				}
+			}
+			propagate(this.addQueue, channel, null, true);
+		}
+	}
+
+	// Number of light values changed since the engine was created
+	public long getUpdatedBlocks(){
+		return this.updatedBlocks;
+	}
+
+	// Intensity of a triangle lit by a packed light value, from 0 to 1
+	public static double getIntensity(int packed, int skyLight){
+		int block = packed & 0xF;
+		int sky = ((packed >> 4) & 0xF)*skyLight/Block.MAX_LIGHT_INTENSITY;
+		return (double)Math.max(block, sky)/Block.MAX_LIGHT_INTENSITY;
+	}
+
+	private void propagate(IntQueue queue, int channel, Chunk only, boolean notify){
+		while (!queue.isEmpty()){
+			int x = queue.pop();
+			int y = queue.pop();
+			int z = queue.pop();
+			queue.pop();
+			Chunk chunk = getChunk(x, y, z, only);
+			if (chunk == null) continue;
+			int level = getLight(chunk, x, y, z, channel);
+			if (level <= 1) continue;
+
+			for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+				int[] dir = ChunkMesher.NORMALS[f];
+				int nx = x+dir[0];
+				int ny = y+dir[1];
+				int nz = z+dir[2];
+				Chunk other = getChunk(nx, ny, nz, only);
+				if (other == null || isOpaque(other.getBlockId(nx % Chunk.CHUNK_SIZE, ny % Chunk.CHUNK_SIZE, nz % Chunk.CHUNK_SIZE))) continue;
+				int value = channel == SKY && f == DOWN && level == Block.MAX_LIGHT_INTENSITY ? level : level-1;
+				if (getLight(other, nx, ny, nz, channel) < value){
+					if (notify){
+						setLight(other, nx, ny, nz, channel, value);
+					} else {
+						setRawLight(other, nx, ny, nz, channel, value);
+					}
+					queue.push(nx, ny, nz, 0);
+				}
+			}
+		}
+	}
+
+	// Remove the light that depended on the removed entries, the light around it is queued to flow back
+	private void unpropagate(int channel){
+		while (!this.removeQueue.isEmpty()){
+			int x = this.removeQueue.pop();
+			int y = this.removeQueue.pop();
+			int z = this.removeQueue.pop();
+			int level = this.removeQueue.pop();
+
+			for (int f = 0; f < ChunkMesher.NORMALS.length; f++){
+				int[] dir = ChunkMesher.NORMALS[f];
+				int nx = x+dir[0];
+				int ny = y+dir[1];
+				int nz = z+dir[2];
+				Chunk other = getChunk(nx, ny, nz, null);
+				if (other == null) continue;
+				int value = getLight(other, nx, ny, nz, channel);
+				if (value == 0) continue;
+
+				boolean dependent = value < level || (channel == SKY && f == DOWN && level == Block.MAX_LIGHT_INTENSITY && value == Block.MAX_LIGHT_INTENSITY);
+				if (dependent){
+					setLight(other, nx, ny, nz, channel, 0);
+					this.removeQueue.push(nx, ny, nz, value);
+					int emission = channel == BLOCK ? Atlas.MAIN_ATLAS.getLightEmission(other.getBlockId(nx % Chunk.CHUNK_SIZE, ny % Chunk.CHUNK_SIZE, nz % Chunk.CHUNK_SIZE)) : 0;
+					if (emission > 0){
+						setLight(other, nx, ny, nz, channel, emission);
+						this.addQueue.push(nx, ny, nz, 0);
+					}
+				} else {
+					this.addQueue.push(nx, ny, nz, 0);
+				}
+			}
+		}
+	}
+
+	// Same guess as initChunk for the blocks below a chunk that is not loaded
+	private boolean isOpenSky(int x, int y, int z){
+		if (y % Chunk.CHUNK_SIZE != 0 || getChunk(x, y-1, z, null) != null) return false;
+		if (y < Chunk.HEIGHT_LIMIT) return true;
+		return y <= this.world.getColumns().get(x / Chunk.CHUNK_SIZE, z / Chunk.CHUNK_SIZE).getHeight(x % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+	}
+
+	private Chunk getChunk(int x, int y, int z, Chunk only){
+		if (x < 0 || y < 0 || z < 0) return null;
+		int chunkX = x / Chunk.CHUNK_SIZE;
+		int chunkY = y / Chunk.CHUNK_SIZE;
+		int chunkZ = z / Chunk.CHUNK_SIZE;
+		if (only != null){
+			return only.getX() == chunkX && only.getY() == chunkY && only.getZ() == chunkZ ? only : null;
+		} else {
+			return this.world.getChunkAt(chunkX, chunkY, chunkZ);
+		}
+	}
+
+	private int getLight(int x, int y, int z, int channel){
+		Chunk chunk = getChunk(x, y, z, null);
+		return chunk == null ? 0 : getLight(chunk, x, y, z, channel);
+	}
+
+	private void setLight(int x, int y, int z, int channel, int value){
+		Chunk chunk = getChunk(x, y, z, null);
+		if (chunk != null) setLight(chunk, x, y, z, channel, value);
+	}
+
+	private static int getLight(Chunk chunk, int x, int y, int z, int channel){
+		int packed = chunk.getLightData()[getIndex(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE)];
+		return channel == SKY ? (packed >> 4) & 0xF : packed & 0xF;
+	}
+
+	private void setLight(Chunk chunk, int x, int y, int z, int channel, int value){
+		chunk.setLight(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE, channel, value);
+		this.updatedBlocks++;
+	}
+
+	private static void setRawLight(Chunk chunk, int x, int y, int z, int channel, int value){
+		byte[] light = chunk.getLightData();
+		int index = getIndex(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+		light[index] = (byte)(channel == SKY ? (light[index] & 0x0F) | (value << 4) : (light[index] & 0xF0) | value);
+	}
+
+	private static boolean isOpaque(int id){
+		return Atlas.MAIN_ATLAS.isLightOpaque(id);
+	}
+
+	private static int getIndex(int x, int y, int z){
+		return x+(y*Chunk.CHUNK_SIZE+z)*Chunk.CHUNK_SIZE;
+	}
+}
@@ -0,0 +1,325 @@
+package com.orangomango.blockworld.model;
+
+import java.util.*;
+
+import com.orangomango.rendering3d.model.Mesh;
+import com.orangomango.blockworld.entity.Frustum;
+
+/**
+ * Low detail terrain drawn outside of the loaded chunks.
+ * The terrain is split in square tiles of chunk columns, each tile is a surface mesh built from the
+ * heightmap of the ColumnCache, with one cell every 2 blocks (level 1) or every 4 blocks (level 2).
+ * Columns whose surface chunks are loaded are left to the chunk meshes. Every cell edge facing a lower
+ * cell, a tile of another level or a loaded column gets a wall going down, so there are no holes between them.
+ * A tile is rebuilt in the same frame a column is loaded or unloaded, so it never draws over the chunks or leaves a hole.
+ * Level changes are not blended: the engine draws opaque triangles only, so the tiles cannot fade, and the heights
+ * of the cells would have to be moved on every frame. Tiles change level at twice the render distance (with
+ * hysteresis so they don't switch back and forth), where a cell of level 1 is a few pixels wide.
+ * Player changes to unloaded chunks are not shown, the heightmap is the generated terrain.
+ * Nothing is built while the world has no RenderListener.
+ */
+public class LodTerrain{
+	public static final double DISTANCE = ChunkManager.RENDER_DISTANCE*4; // In chunks
+	private static final double LEVEL_DISTANCE = ChunkManager.RENDER_DISTANCE*2; // Level 1 tiles are nearer than this
+	private static final double HYSTERESIS = 1; // Chunks a tile has to move past a limit before changing level
+	private static final int TILE_SIZE = Math.max(1, 16/Chunk.CHUNK_SIZE); // In chunk columns, 16 blocks
+	private static final int[] STEPS = {0, 2, 4}; // Cell size in blocks of each level
+	private static final int SKIRT = 4; // Depth of the walls on the border of a tile
+	private static final int MAX_BUILDS = 4; // Tiles rebuilt each frame, tiles whose columns were loaded or unloaded are always rebuilt
+
+	private World world;
+	private Map<Long, Tile> tiles = new HashMap<>();
+	private Set<Tile> dirtyTiles = new LinkedHashSet<>();
+	private Set<Tile> urgentTiles = new LinkedHashSet<>();
+	private int triangles;
+
+	private static class Tile{
+		private int x, z;
+		private int level;
+		private boolean visible = true;
+		private List<Mesh> meshes = new ArrayList<>();
+		private int triangles;
+		private boolean[] loaded = new boolean[TILE_SIZE*TILE_SIZE]; // Columns left to the chunks in the meshes
+
+		public Tile(int x, int z, int level){
+			this.x = x;
+			this.z = z;
+			this.level = level;
+		}
+	}
+
+	public LodTerrain(World world){
+		this.world = world;
+	}
+
+	/**
+	 * Add, remove and change the level of the tiles around the player
+	 * @param chunkX the x coordinate of the chunk of the player
+	 * @param chunkZ the z coordinate of the chunk of the player
+	 */
+	public void manage(int chunkX, int chunkZ){
+		if (!this.world.isRendering()) return;
+		int radius = (int)Math.ceil((DISTANCE+HYSTERESIS)/TILE_SIZE)+1;
+		int tileX = Math.floorDiv(chunkX, TILE_SIZE);
+		int tileZ = Math.floorDiv(chunkZ, TILE_SIZE);
+		for (int i = tileX-radius; i <= tileX+radius; i++){
+			for (int j = tileZ-radius; j <= tileZ+radius; j++){
+				if (i < 0 || j < 0) continue;
+				long key = ChunkMap.pack(i, 0, j);
+				double distance = getDistance(i, j, chunkX, chunkZ);
+				Tile tile = this.tiles.get(key);
+				if (tile == null){
+					if (distance <= DISTANCE){
+						tile = new Tile(i, j, distance < LEVEL_DISTANCE ? 1 : 2);
+						this.tiles.put(key, tile);
+						this.dirtyTiles.add(tile);
+					}
+				} else if (distance > DISTANCE+HYSTERESIS){
+					removeTile(key);
+				} else {
+					int level = tile.level;
+					if (level == 1 && distance > LEVEL_DISTANCE+HYSTERESIS) level = 2;
+					else if (level == 2 && distance < LEVEL_DISTANCE-HYSTERESIS) level = 1;
+					if (level != tile.level){
+						tile.level = level;
+						this.dirtyTiles.add(tile);
+					}
+				}
+			}
+		}
+
+		// Tiles left behind by a teleport
+		List<Long> toRemove = new ArrayList<>();
+		for (Map.Entry<Long, Tile> entry : this.tiles.entrySet()){
+			if (getDistance(entry.getValue().x, entry.getValue().z, chunkX, chunkZ) > DISTANCE+HYSTERESIS){
+				toRemove.add(entry.getKey());
+			}
+		}
+		for (long key : toRemove){
+			removeTile(key);
+		}
+	}
+
+	// Distance in chunks from the chunk of the player to the nearest column of a tile
+	private static double getDistance(int tileX, int tileZ, int chunkX, int chunkZ){
+		double dx = Math.max(Math.max(tileX*TILE_SIZE-chunkX, chunkX-(tileX*TILE_SIZE+TILE_SIZE-1)), 0);
+		double dz = Math.max(Math.max(tileZ*TILE_SIZE-chunkZ, chunkZ-(tileZ*TILE_SIZE+TILE_SIZE-1)), 0);
+		return Math.sqrt(dx*dx+dz*dz);
+	}
+
+	private void removeTile(long key){
+		Tile tile = this.tiles.remove(key);
+		removeMeshes(tile);
+		this.dirtyTiles.remove(tile);
+		this.urgentTiles.remove(tile);
+	}
+
+	/**
+	 * A chunk was loaded or unloaded. If its column is now drawn by the chunks, or not anymore,
+	 * the tile that contains it is rebuilt in this frame (see update).
+	 */
+	public void onChunkChanged(int chunkX, int chunkZ){
+		if (chunkX < 0 || chunkZ < 0) return;
+		Tile tile = this.tiles.get(ChunkMap.pack(chunkX / TILE_SIZE, 0, chunkZ / TILE_SIZE));
+		if (tile != null && tile.loaded[chunkX % TILE_SIZE+(chunkZ % TILE_SIZE)*TILE_SIZE] != isLoaded(chunkX, chunkZ)){
+			this.urgentTiles.add(tile);
+		}
+	}
+
+	// Called once every frame
+	public void update(){
+		for (Tile tile : this.urgentTiles){
+			build(tile);
+			this.dirtyTiles.remove(tile);
+		}
+		this.urgentTiles.clear();
+
+		Iterator<Tile> iterator = this.dirtyTiles.iterator();
+		for (int i = 0; i < MAX_BUILDS && iterator.hasNext(); i++){
+			build(iterator.next());
+			iterator.remove();
+		}
+	}
+
+	private void build(Tile tile){
+		final int step = STEPS[tile.level];
+		final int size = TILE_SIZE*Chunk.CHUNK_SIZE/step; // Cells on each side
+		final int light = Block.MAX_LIGHT_INTENSITY << 4;
+		final int water = Atlas.MAIN_ATLAS.getBlockId("water");
+		int startX = tile.x*TILE_SIZE*Chunk.CHUNK_SIZE;
+		int startZ = tile.z*TILE_SIZE*Chunk.CHUNK_SIZE;
+
+		// One more cell on each side for the walls on the border of the tile
+		int[][] tops = new int[size+2][size+2];
+		int[][] ids = new int[size+2][size+2];
+		boolean[][] loaded = new boolean[size+2][size+2];
+		for (int i = 0; i < size+2; i++){
+			for (int j = 0; j < size+2; j++){
+				int bx = startX+(i-1)*step;
+				int bz = startZ+(j-1)*step;
+				if (bx < 0 || bz < 0){
+					loaded[i][j] = true; // Nothing to draw outside of the world
+					continue;
+				}
+				sample(bx, bz, step, tops, ids, i, j);
+				loaded[i][j] = isLoaded(bx / Chunk.CHUNK_SIZE, bz / Chunk.CHUNK_SIZE);
+			}
+		}
+
+		ChunkMesher.MeshBuilder opaque = new ChunkMesher.MeshBuilder();
+		ChunkMesher.MeshBuilder transparent = new ChunkMesher.MeshBuilder();
+		for (int i = 1; i <= size; i++){
+			for (int j = 1; j <= size; j++){
+				if (loaded[i][j]) continue;
+				int id = ids[i][j];
+				int top = tops[i][j];
+				ChunkMesher.MeshBuilder builder = Atlas.MAIN_ATLAS.isTransparent(id) ? transparent : opaque;
+				double x = (i-1)*step;
+				double z = (j-1)*step;
+				double y = id == water ? top+Block.LIQUID_OFFSET : top;
+
+				// The top is merged with the next cells along z that have the same type and height
+				if (j == 1 || loaded[i][j-1] || ids[i][j-1] != id || tops[i][j-1] != top){
+					int length = 1;
+					while (j+length <= size && !loaded[i][j+length] && ids[i][j+length] == id && tops[i][j+length] == top) length++;
+					builder.addCubeFace(id, BlockMesh.FACE_TOP, new double[]{x, y, z}, new double[]{x+step, y+1, z+step*length}, light);
+				}
+				if (id == water) continue;
+
+				// Walls facing each neighbour cell: front (z-1), right (x+1), back (z+1), left (x-1)
+				for (int f = 0; f < 4; f++){
+					int[] normal = ChunkMesher.NORMALS[f];
+					int ni = i+normal[0];
+					int nj = j+normal[2];
+					boolean border = ni == 0 || nj == 0 || ni == size+1 || nj == size+1 || loaded[ni][nj];
+					int bottom = border ? Math.max(top, tops[ni][nj])+SKIRT : tops[ni][nj];
+					if (bottom <= top) continue;
+					double[] s = {x, top, z};
+					double[] e = {x+step, bottom, z+step};
+					builder.addCubeFace(id, getFace(f), s, e, light);
+				}
+			}
+		}
+
+		RenderListener listener = this.world.getRenderListener();
+		if (listener == null) return;
+		for (int i = 0; i < TILE_SIZE; i++){
+			for (int j = 0; j < TILE_SIZE; j++){
+				tile.loaded[i+j*TILE_SIZE] = isLoaded(tile.x*TILE_SIZE+i, tile.z*TILE_SIZE+j);
+			}
+		}
+		removeMeshes(tile);
+		tile.meshes.clear();
+		tile.triangles = opaque.getTriangles()+transparent.getTriangles();
+		this.triangles += tile.triangles;
+		int skyLight = this.world.getSkyLight();
+		Mesh mesh = opaque.build(startX, 0, startZ, false, skyLight);
+		if (mesh != null) tile.meshes.add(mesh);
+		mesh = transparent.build(startX, 0, startZ, true, skyLight);
+		if (mesh != null) tile.meshes.add(mesh);
+		for (Mesh m : tile.meshes){
+			m.setSkipCondition(cam -> !tile.visible);
+			listener.addMesh(m);
+		}
+	}
+
+	private void removeMeshes(Tile tile){
+		RenderListener listener = this.world.getRenderListener();
+		if (listener != null){
+			for (Mesh mesh : tile.meshes){
+				listener.removeMesh(mesh);
+			}
+		}
+		this.triangles -= tile.triangles;
+		tile.triangles = 0;
+	}
+
+	// The highest block of the cell and its type
+	private void sample(int bx, int bz, int step, int[][] tops, int[][] ids, int i, int j){
+		ColumnCache.Column column = this.world.getColumns().get(bx / Chunk.CHUNK_SIZE, bz / Chunk.CHUNK_SIZE);
+		int top = Integer.MAX_VALUE;
+		int cx = 0, cz = 0;
+		for (int x = 0; x < step; x++){
+			for (int z = 0; z < step; z++){
+				int h = column.getHeight((bx+x) % Chunk.CHUNK_SIZE, (bz+z) % Chunk.CHUNK_SIZE);
+				if (h < top){
+					top = h;
+					cx = (bx+x) % Chunk.CHUNK_SIZE;
+					cz = (bz+z) % Chunk.CHUNK_SIZE;
+				}
+			}
+		}
+
+		// Same rules as the world generation in Chunk
+		if (top > Chunk.WATER_HEIGHT){
+			tops[i][j] = Chunk.WATER_HEIGHT;
+			ids[i][j] = Atlas.MAIN_ATLAS.getBlockId("water");
+		} else {
+			tops[i][j] = top;
+			ids[i][j] = column.getBiome(cx, cz) <= 0.4 ? Atlas.MAIN_ATLAS.getBlockId("sand") : column.getSurface(cx, cz);
+		}
+	}
+
+	// A column is drawn by the chunks when the chunks containing its surface are loaded
+	private boolean isLoaded(int chunkX, int chunkZ){
+		ColumnCache.Column column = this.world.getColumns().get(chunkX, chunkZ);
+		int min = Chunk.WATER_HEIGHT;
+		int max = 0;
+		for (int x = 0; x < Chunk.CHUNK_SIZE; x++){
+			for (int z = 0; z < Chunk.CHUNK_SIZE; z++){
+				int h = Math.min(column.getHeight(x, z), Chunk.WATER_HEIGHT);
+				min = Math.min(min, h);
+				max = Math.max(max, h);
+			}
+		}
+		for (int y = min / Chunk.CHUNK_SIZE; y <= max / Chunk.CHUNK_SIZE; y++){
+			if (this.world.getChunkAt(chunkX, y, chunkZ) == null) return false;
+		}
+		return true;
+	}
+
+	private static int getFace(int f){
+		return switch (f){
+			case 0 -> BlockMesh.FACE_FRONT;
+			case 1 -> BlockMesh.FACE_RIGHT;
+			case 2 -> BlockMesh.FACE_BACK;
+			default -> BlockMesh.FACE_LEFT;
+		};
+	}
+
+	// Same as ChunkManager.updateVisibility
+	public void updateVisibility(Frustum frustum){
+		for (Tile tile : this.tiles.values()){
+			double x = tile.x*TILE_SIZE*Chunk.CHUNK_SIZE;
+			double z = tile.z*TILE_SIZE*Chunk.CHUNK_SIZE;
+			double size = TILE_SIZE*Chunk.CHUNK_SIZE;
+			tile.visible = frustum.isVisible(x, 0, z, x+size, Chunk.WATER_HEIGHT+SKIRT+1, z+size);
+		}
+	}
+
+	// Called when the sky light level changes
+	public void applySkyLight(){
+		double intensity = LightEngine.getIntensity(Block.MAX_LIGHT_INTENSITY << 4, this.world.getSkyLight());
+		for (Tile tile : this.tiles.values()){
+			for (Mesh mesh : tile.meshes){
+				for (int i = 0; i < mesh.getTriangles().length; i++){
+					mesh.getTriangles()[i].setLight(intensity);
+				}
+			}
+		}
+	}
+
+	public void clear(){
+		for (long key : new ArrayList<>(this.tiles.keySet())){
+			removeTile(key);
+		}
+	}
+
+	public int getTriangles(){
+		return this.triangles;
+	}
+
+	public int getTiles(){
+		return this.tiles.size();
+	}
+}
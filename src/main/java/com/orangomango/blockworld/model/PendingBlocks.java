@@ -0,0 +1,141 @@
+package com.orangomango.blockworld.model;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Blocks generated in chunks that are not loaded yet, indexed by destination chunk.
+ * Each entry is packed in an int: the index of the block inside the chunk in the high 16 bits
+ * and the block id in the low 16 bits.
+ */
+public class PendingBlocks{
+	private static final int FORMAT_VERSION = 2; // Version 1 had no chunk size, it was always 4
+
+	private Map<Long, int[]> entries = new HashMap<>();
+
+	public synchronized void add(int x, int y, int z, int id){
+		if (x < 0 || y < 0 || z < 0) return; // There are no chunks with negative coordinates
+		int chunkX = x / Chunk.CHUNK_SIZE;
+		int chunkY = y / Chunk.CHUNK_SIZE;
+		int chunkZ = z / Chunk.CHUNK_SIZE;
+		int index = (x % Chunk.CHUNK_SIZE)+((y % Chunk.CHUNK_SIZE)*Chunk.CHUNK_SIZE+(z % Chunk.CHUNK_SIZE))*Chunk.CHUNK_SIZE;
+		append(ChunkMap.pack(chunkX, chunkY, chunkZ), new int[]{(index << 16) | id});
+	}
+
+	// Remove and return the entries of the given chunk
+	public synchronized int[] take(int chunkX, int chunkY, int chunkZ){
+		int[] output = this.entries.remove(ChunkMap.pack(chunkX, chunkY, chunkZ));
+		return output == null ? new int[0] : output;
+	}
+
+	// Give back entries returned by take
+	public synchronized void putBack(int chunkX, int chunkY, int chunkZ, int[] data){
+		if (data.length > 0){
+			append(ChunkMap.pack(chunkX, chunkY, chunkZ), data);
+		}
+	}
+
+	public synchronized void clear(){
+		this.entries.clear();
+	}
+
+	// A copy of the current entries, the arrays are shared since they are never changed in place
+	public synchronized PendingBlocks copy(){
+		PendingBlocks output = new PendingBlocks();
+		output.entries.putAll(this.entries);
+		return output;
+	}
+
+	public synchronized int size(){
+		return this.entries.values().stream().mapToInt(e -> e.length).sum();
+	}
+
+	public static int getIndex(int entry){
+		return entry >>> 16;
+	}
+
+	public static int getId(int entry){
+		return entry & 0xFFFF;
+	}
+
+	// The blocks are written to a temporary file that replaces the old one, a crash leaves one of the two complete
+	public synchronized void save(File file) throws IOException{
+		File temp = new File(file.getPath()+".tmp");
+		FileOutputStream output = new FileOutputStream(temp);
+		DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(output));
+		try {
+			stream.writeInt(FORMAT_VERSION);
+			stream.writeInt(Chunk.CHUNK_SIZE);
+			stream.writeInt(this.entries.size());
+			for (Map.Entry<Long, int[]> entry : this.entries.entrySet()){
+				stream.writeLong(entry.getKey());
+				stream.writeInt(entry.getValue().length);
+				for (int data : entry.getValue()){
+					stream.writeInt(data);
+				}
+			}
+			stream.flush();
+			output.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	public synchronized void load(File file) throws IOException{
+		this.entries.clear();
+		DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int version = stream.readInt();
+			if (version != 1 && version != FORMAT_VERSION) throw new IOException("Unknown pending blocks format: "+version);
+			int size = version == 1 ? 4 : stream.readInt();
+			int chunks = stream.readInt();
+			for (int i = 0; i < chunks; i++){
+				long key = stream.readLong();
+				int[] data = new int[stream.readInt()];
+				for (int j = 0; j < data.length; j++){
+					data[j] = stream.readInt();
+				}
+				if (size == Chunk.CHUNK_SIZE){
+					this.entries.put(key, data);
+				} else {
+					// Saved with another chunk size, the blocks are moved to the chunks of the current size
+					for (int entry : data){
+						int index = getIndex(entry);
+						add(ChunkMap.unpackX(key)*size+index % size, ChunkMap.unpackY(key)*size+index / (size*size), ChunkMap.unpackZ(key)*size+index / size % size, getId(entry));
+					}
+				}
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	// Read the old text format, one "x y z id" line per block
+	public synchronized void loadLegacy(File file) throws IOException{
+		this.entries.clear();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null){
+				if (line.isBlank()) continue;
+				String[] parts = line.split(" ");
+				add(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private void append(long key, int[] data){
+		int[] current = this.entries.get(key);
+		if (current == null){
+			this.entries.put(key, data);
+		} else {
+			int[] merged = Arrays.copyOf(current, current.length+data.length);
+			System.arraycopy(data, 0, merged, current.length, data.length);
+			this.entries.put(key, merged);
+		}
+	}
+}
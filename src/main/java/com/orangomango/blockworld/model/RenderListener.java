@@ -0,0 +1,16 @@
+package com.orangomango.blockworld.model;
+
+import com.orangomango.rendering3d.model.Mesh;
+
+/**
+ * Receives the meshes of the world. Without a listener the world runs headless:
+ * chunks are generated, lit and saved but no mesh or texture is ever created.
+ */
+public interface RenderListener{
+	void addMesh(Mesh mesh);
+
+	void removeMesh(Mesh mesh);
+
+	// Called when the whole world is replaced
+	void clearMeshes();
+}
@@ -1,23 +1,97 @@
 package com.orangomango.blockworld.model;
 
 import java.util.*;
+import java.io.IOException;
 
-import static com.orangomango.blockworld.MainApplication.ENGINE;
+import com.orangomango.blockworld.storage.EditJournal;
 
 public class World{
+	public static final int GENERATOR_VERSION = 1; // Increase when the generated terrain changes, saved delta records depend on it
+
 	private int seed;
 	private boolean superFlat;
-	private Random random;
-	private HashMap<Chunk.ChunkPosition, Chunk> chunks = new HashMap<>();
+	private ChunkMap chunks = new ChunkMap(); // Read by the chunk loader threads
+	private PendingBlocks pendingBlocks = new PendingBlocks();
+	private volatile ColumnCache columns; // Recreated when the seed changes
+	private Set<Chunk> meshUpdates = new LinkedHashSet<>(); // Chunks whose blocks or light changed since the last frame
+	private double skyIntensity = 1;
+	private int skyLight = Block.MAX_LIGHT_INTENSITY; // Sky intensity quantized to the light levels, used by the triangles
+	private LightEngine lightEngine = new LightEngine(this);
+	private volatile RenderListener renderListener;
+	private EditJournal journal;
+
+	public static class RayHit{
+		private Block block;
+		private int x, y, z;
+		private int normalX, normalY, normalZ;
+		private double distance;
+
+		public RayHit(Block block, int x, int y, int z, int normalX, int normalY, int normalZ, double distance){
+			this.block = block;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.normalX = normalX;
+			this.normalY = normalY;
+			this.normalZ = normalZ;
+			this.distance = distance;
+		}
+
+		public Block getBlock(){
+			return this.block;
+		}
+
+		public int getX(){
+			return this.x;
+		}
+
+		public int getY(){
+			return this.y;
+		}
+
+		public int getZ(){
+			return this.z;
+		}
+
+		// Normal of the face that was hit, all zero if the ray started inside the block
+		public int getNormalX(){
+			return this.normalX;
+		}
+
+		public int getNormalY(){
+			return this.normalY;
+		}
+
+		public int getNormalZ(){
+			return this.normalZ;
+		}
+
+		// Where a block placed against the hit face goes
+		public int getPlaceX(){
+			return this.x+this.normalX;
+		}
+
+		public int getPlaceY(){
+			return this.y+this.normalY;
+		}
+
+		public int getPlaceZ(){
+			return this.z+this.normalZ;
+		}
+
+		public double getDistance(){
+			return this.distance;
+		}
+	}
 
 	public World(int seed, boolean superFlat){
 		this.seed = seed;
 		this.superFlat = superFlat;
-		this.random = new Random(seed);
+		this.columns = new ColumnCache(seed, superFlat);
 	}
 
 	public void addChunk(Chunk chunk, Chunk.ChunkPosition pos){
-		this.chunks.put(pos, chunk);
+		this.chunks.put(pos.getX(), pos.getY(), pos.getZ(), chunk);
 	}
 
 	public Chunk addChunk(int x, int y, int z){
@@ -28,8 +102,7 @@ public class World{
 	}
 
 	public void removeChunk(int x, int y, int z){
-		Chunk.ChunkPosition pos = new Chunk.ChunkPosition(x, y, z);
-		this.chunks.remove(pos);
+		this.chunks.remove(x, y, z);
 	}
 
 	public Block getBlockAt(int x, int y, int z){
@@ -44,16 +117,78 @@ public class World{
 		}
 	}
 
+	public int getBlockIdAt(int x, int y, int z){
+		int chunkX = x / Chunk.CHUNK_SIZE;
+		int chunkY = y / Chunk.CHUNK_SIZE;
+		int chunkZ = z / Chunk.CHUNK_SIZE;
+		Chunk chunk = getChunkAt(chunkX, chunkY, chunkZ);
+		if (chunk != null){
+			return chunk.getBlockId(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+		} else {
+			return 0;
+		}
+	}
+
 	public void removeBlockAt(int x, int y, int z){
 		int chunkX = x / Chunk.CHUNK_SIZE;
 		int chunkY = y / Chunk.CHUNK_SIZE;
 		int chunkZ = z / Chunk.CHUNK_SIZE;
 		Chunk chunk = getChunkAt(chunkX, chunkY, chunkZ);
 		if (chunk != null){
+			logEdit(x, y, z, 0);
 			chunk.setBlock(null, x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+			markBlockChanged(x, y, z);
+			this.lightEngine.onBlockChanged(x, y, z);
 		}
 	}
 
+	/**
+	 * Packed light of a block, see LightEngine
+	 * Blocks in chunks that are not loaded have full sky light
+	 */
+	public int getLightAt(int x, int y, int z){
+		Chunk chunk = getChunkAt(x / Chunk.CHUNK_SIZE, y / Chunk.CHUNK_SIZE, z / Chunk.CHUNK_SIZE);
+		if (chunk != null && x >= 0 && y >= 0 && z >= 0){
+			return chunk.getLight(x % Chunk.CHUNK_SIZE, y % Chunk.CHUNK_SIZE, z % Chunk.CHUNK_SIZE);
+		} else {
+			return Block.MAX_LIGHT_INTENSITY << 4;
+		}
+	}
+
+	// Called when the blocks or the light of a chunk change, all the changes of a frame are applied at once
+	public synchronized void scheduleMeshUpdate(Chunk chunk){
+		this.meshUpdates.add(chunk);
+	}
+
+	public synchronized List<Chunk> takeMeshUpdates(){
+		if (this.meshUpdates.isEmpty()) return List.of();
+		List<Chunk> output = new ArrayList<>(this.meshUpdates);
+		this.meshUpdates.clear();
+		return output;
+	}
+
+	/**
+	 * Set the intensity of the sky light. The intensity itself is kept as it is, only
+	 * the sky light of the triangles is quantized to the light levels (see getSkyLight).
+	 * @param intensity from 0 to 1
+	 * @return true if the light level changed, the triangles must be updated
+	 */
+	public boolean setSkyIntensity(double intensity){
+		this.skyIntensity = Math.min(Math.max(intensity, 0), 1);
+		int level = (int)Math.round(this.skyIntensity*Block.MAX_LIGHT_INTENSITY);
+		if (level == this.skyLight) return false;
+		this.skyLight = level;
+		return true;
+	}
+
+	public double getSkyIntensity(){
+		return this.skyIntensity;
+	}
+
+	public int getSkyLight(){
+		return this.skyLight;
+	}
+
 	public void setBlockAt(int x, int y, int z, String type){
 		int chunkX = x / Chunk.CHUNK_SIZE;
 		int chunkY = y / Chunk.CHUNK_SIZE;
@@ -63,23 +198,105 @@ public class World{
 			int blockX = x % Chunk.CHUNK_SIZE;
 			int blockY = y % Chunk.CHUNK_SIZE;
 			int blockZ = z % Chunk.CHUNK_SIZE;
-			chunk.setBlock(new Block(chunk, blockX, blockY, blockZ, type), blockX, blockY, blockZ);
+			Block block = new Block(chunk, blockX, blockY, blockZ, type);
+			logEdit(x, y, z, block.getId());
+			chunk.setBlock(block, blockX, blockY, blockZ);
+			markBlockChanged(x, y, z);
+			this.lightEngine.onBlockChanged(x, y, z);
 		}
 	}
 
-	public Collection<Chunk> getChunks(){
-		return this.chunks.values();
+	// Only the faces of the block and of its 6 neighbours can change, the neighbours are in other chunks only on a border
+	void markBlockChanged(int x, int y, int z){
+		markBlockDirty(x, y, z);
+		for (int[] normal : ChunkMesher.NORMALS){
+			markBlockDirty(x+normal[0], y+normal[1], z+normal[2]);
+		}
+	}
+
+	private void markBlockDirty(int x, int y, int z){
+		Chunk chunk = getChunkAt(Math.floorDiv(x, Chunk.CHUNK_SIZE), Math.floorDiv(y, Chunk.CHUNK_SIZE), Math.floorDiv(z, Chunk.CHUNK_SIZE));
+		if (chunk != null){
+			chunk.markBlockDirty(Math.floorMod(x, Chunk.CHUNK_SIZE), Math.floorMod(y, Chunk.CHUNK_SIZE), Math.floorMod(z, Chunk.CHUNK_SIZE));
+			scheduleMeshUpdate(chunk);
+		}
 	}
 
-	public void setupFaces(){
-		for (Chunk chunk : getChunks()){
-			chunk.setupFaces();
+	/**
+	 * Cast a ray visiting every block it crosses (Amanatides-Woo traversal). Liquids are passed through.
+	 * @return the first solid block hit within maxDistance, or null
+	 */
+	public RayHit rayCast(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance){
+		double length = Math.sqrt(dx*dx+dy*dy+dz*dz);
+		if (length == 0) return null;
+		dx /= length;
+		dy /= length;
+		dz /= length;
+
+		int x = (int)Math.floor(ox);
+		int y = (int)Math.floor(oy);
+		int z = (int)Math.floor(oz);
+		int stepX = (int)Math.signum(dx);
+		int stepY = (int)Math.signum(dy);
+		int stepZ = (int)Math.signum(dz);
+
+		// Distance along the ray to cross one block, and to reach the next block boundary
+		double deltaX = stepX == 0 ? Double.POSITIVE_INFINITY : Math.abs(1/dx);
+		double deltaY = stepY == 0 ? Double.POSITIVE_INFINITY : Math.abs(1/dy);
+		double deltaZ = stepZ == 0 ? Double.POSITIVE_INFINITY : Math.abs(1/dz);
+		double maxX = stepX == 0 ? Double.POSITIVE_INFINITY : (stepX > 0 ? x+1-ox : ox-x)*deltaX;
+		double maxY = stepY == 0 ? Double.POSITIVE_INFINITY : (stepY > 0 ? y+1-oy : oy-y)*deltaY;
+		double maxZ = stepZ == 0 ? Double.POSITIVE_INFINITY : (stepZ > 0 ? z+1-oz : oz-z)*deltaZ;
+
+		int normalX = 0, normalY = 0, normalZ = 0;
+		double distance = 0;
+		while (distance <= maxDistance){
+			int id = getBlockIdAt(x, y, z);
+			if (id != 0 && !Atlas.MAIN_ATLAS.isLiquid(id)){
+				return new RayHit(getBlockAt(x, y, z), x, y, z, normalX, normalY, normalZ, distance);
+			}
+
+			if (maxX < maxY && maxX < maxZ){
+				x += stepX;
+				distance = maxX;
+				maxX += deltaX;
+				normalX = -stepX;
+				normalY = 0;
+				normalZ = 0;
+			} else if (maxY < maxZ){
+				y += stepY;
+				distance = maxY;
+				maxY += deltaY;
+				normalX = 0;
+				normalY = -stepY;
+				normalZ = 0;
+			} else {
+				z += stepZ;
+				distance = maxZ;
+				maxZ += deltaZ;
+				normalX = 0;
+				normalY = 0;
+				normalZ = -stepZ;
+			}
 		}
+		return null;
+	}
+
+	// True if no solid block is between the two points
+	public boolean hasLineOfSight(double x1, double y1, double z1, double x2, double y2, double z2){
+		double dx = x2-x1;
+		double dy = y2-y1;
+		double dz = z2-z1;
+		double distance = Math.sqrt(dx*dx+dy*dy+dz*dz);
+		return distance == 0 || rayCast(x1, y1, z1, dx, dy, dz, distance) == null;
+	}
+
+	public List<Chunk> getChunks(){
+		return this.chunks.values();
 	}
 
 	public Chunk getChunkAt(int x, int y, int z){
-		Chunk.ChunkPosition pos = new Chunk.ChunkPosition(x, y, z);
-		return this.chunks.getOrDefault(pos, null);
+		return this.chunks.get(x, y, z);
 	}
 
 	public int getSeed(){
@@ -88,12 +305,75 @@ public class World{
 
 	public void setSeed(int seed){
 		this.seed = seed;
+		this.columns = new ColumnCache(seed, this.superFlat);
 		this.chunks.clear();
-		ENGINE.clearObjects();
+		this.pendingBlocks.clear();
+		if (this.renderListener != null){
+			this.renderListener.clearMeshes();
+		}
+	}
+
+	/**
+	 * Attach a renderer, the chunks already loaded are meshed and added to it
+	 * @param listener the renderer, null to run headless
+	 */
+	public void setRenderListener(RenderListener listener){
+		if (this.renderListener != null){
+			this.renderListener.clearMeshes();
+		}
+		this.renderListener = listener;
+		if (listener != null){
+			for (Chunk chunk : getChunks()){
+				chunk.attachMesh();
+			}
+		}
+	}
+
+	// The player changes are written to the journal before they are applied
+	public void setEditJournal(EditJournal journal){
+		this.journal = journal;
+	}
+
+	private void logEdit(int x, int y, int z, int id){
+		if (this.journal == null) return;
+		try {
+			this.journal.append(x, y, z, id);
+		} catch (IOException ex){
+			ex.printStackTrace();
+		}
+	}
+
+	public RenderListener getRenderListener(){
+		return this.renderListener;
+	}
+
+	public boolean isRendering(){
+		return this.renderListener != null;
+	}
+
+	public LightEngine getLightEngine(){
+		return this.lightEngine;
+	}
+
+	public ColumnCache getColumns(){
+		return this.columns;
+	}
+
+	public PendingBlocks getPendingBlocks(){
+		return this.pendingBlocks;
 	}
 
-	public Random getRandom(){
-		return this.random;
+	/**
+	 * Random generator used to generate a chunk, it only depends on the seed and the chunk coordinates
+	 * so that the chunks can be generated in any order
+	 */
+	public Random getChunkRandom(int x, int y, int z){
+		long h = this.seed;
+		h = h*0x9E3779B97F4A7C15L+x;
+		h = h*0x9E3779B97F4A7C15L+y;
+		h = h*0x9E3779B97F4A7C15L+z;
+		h ^= h >>> 31;
+		return new Random(h);
 	}
 
 	public boolean isSuperFlat(){
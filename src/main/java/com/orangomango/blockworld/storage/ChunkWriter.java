@@ -0,0 +1,185 @@
+package com.orangomango.blockworld.storage;
+
+import java.io.IOException;
+import java.util.*;
+
+import com.orangomango.blockworld.model.ChunkMap;
+import com.orangomango.blockworld.metrics.*;
+
+/**
+ * Saves chunks on a background thread.
+ * Saving the same chunk again before it was written replaces the queued data, so it's written only once.
+ * The thread writes every queued chunk and then syncs the region files once for the whole batch.
+ * A chunk stays queued until it's written, loads must look here first (see getPending).
+ * Checkpoints run after the batch that has every chunk queued before them, see EditJournal.
+ */
+public class ChunkWriter{
+	private static final Metrics.Timer SAVE_TIMER = Metrics.timer("chunk.save");
+	private static final Metrics.Timer SYNC_TIMER = Metrics.timer("chunk.sync");
+	private static final Metrics.Counter SAVED_COUNTER = Metrics.counter("chunks.saved");
+
+	private RegionStorage storage;
+	private Map<Long, Entry> pending = new LinkedHashMap<>();
+	private List<Runnable> checkpoints = new ArrayList<>();
+	private boolean writing, closed, stopped;
+	private Thread thread;
+
+	private static class Entry{
+		private int x, y, z;
+		private int[][][] data;
+
+		public Entry(int x, int y, int z, int[][][] data){
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.data = data;
+		}
+	}
+
+	public ChunkWriter(RegionStorage storage){
+		this.storage = storage;
+		this.thread = new Thread(this::run, "Chunk writer");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Queue a chunk to be saved, once the writer is closed the chunk is written right away
+	 * @param data the blocks of the chunk, must not be changed after this call
+	 */
+	public synchronized void save(int x, int y, int z, int[][][] data){
+		if (this.closed){
+			try {
+				this.storage.saveChunk(x, y, z, data);
+			} catch (IOException ex){
+				ex.printStackTrace();
+			}
+			return;
+		}
+		this.pending.put(ChunkMap.pack(x, y, z), new Entry(x, y, z, data));
+		notifyAll();
+	}
+
+	// Returns the queued data of the chunk, null if it's not waiting to be written
+	public synchronized int[][][] getPending(int x, int y, int z){
+		Entry entry = this.pending.get(ChunkMap.pack(x, y, z));
+		return entry == null ? null : entry.data;
+	}
+
+	public synchronized int getPendingCount(){
+		return this.pending.size();
+	}
+
+	// Run the given action on the writer thread once every chunk queued until now is written and synced, right away once the thread stopped
+	public synchronized void checkpoint(Runnable action){
+		if (this.stopped){
+			try {
+				this.storage.sync(); // Chunks written by save after the writer was closed
+			} catch (IOException ex){
+				ex.printStackTrace();
+			}
+			action.run();
+			return;
+		}
+		this.checkpoints.add(action);
+		notifyAll();
+	}
+
+	// Wait until every queued chunk is written and synced and the queued checkpoints have run
+	public synchronized void flush(){
+		while ((!this.pending.isEmpty() || !this.checkpoints.isEmpty() || this.writing) && this.thread.isAlive()){
+			try {
+				wait();
+			} catch (InterruptedException ex){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Forget the queued chunks and wait for the batch being written, used when the saved world is deleted
+	public synchronized void discard(){
+		this.pending.clear();
+		this.checkpoints.clear();
+		while (this.writing){
+			try {
+				wait();
+			} catch (InterruptedException ex){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	// Write what is left and stop the thread
+	public void close(){
+		synchronized (this){
+			if (this.closed) return;
+			this.closed = true;
+			notifyAll();
+		}
+		try {
+			this.thread.join();
+		} catch (InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run(){
+		while (true){
+			List<Entry> batch;
+			List<Runnable> checkpoints;
+			synchronized (this){
+				while (this.pending.isEmpty() && this.checkpoints.isEmpty() && !this.closed){
+					try {
+						wait();
+					} catch (InterruptedException ex){
+						this.stopped = true;
+						return;
+					}
+				}
+				if (this.pending.isEmpty() && this.checkpoints.isEmpty()){
+					this.stopped = true;
+					return;
+				}
+				batch = new ArrayList<>(this.pending.values());
+				checkpoints = this.checkpoints;
+				this.checkpoints = new ArrayList<>();
+				this.writing = true;
+			}
+
+			for (Entry entry : batch){
+				ChunkEvent.Save event = new ChunkEvent.Save();
+				event.begin();
+				long start = System.nanoTime();
+				try {
+					this.storage.saveChunk(entry.x, entry.y, entry.z, entry.data);
+				} catch (IOException ex){
+					ex.printStackTrace();
+				}
+				SAVE_TIMER.record(System.nanoTime()-start);
+				event.commit(entry.x, entry.y, entry.z);
+			}
+			long start = System.nanoTime();
+			try {
+				this.storage.sync();
+			} catch (IOException ex){
+				ex.printStackTrace();
+			}
+			SYNC_TIMER.record(System.nanoTime()-start);
+			SAVED_COUNTER.add(batch.size());
+			for (Runnable action : checkpoints){
+				action.run();
+			}
+
+			synchronized (this){
+				// Chunks saved again while the batch was written stay queued
+				for (Entry entry : batch){
+					this.pending.remove(ChunkMap.pack(entry.x, entry.y, entry.z), entry);
+				}
+				this.writing = false;
+				notifyAll();
+			}
+		}
+	}
+}
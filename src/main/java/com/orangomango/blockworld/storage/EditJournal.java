@@ -0,0 +1,193 @@
+package com.orangomango.blockworld.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import com.orangomango.blockworld.model.*;
+import com.orangomango.blockworld.metrics.Metrics;
+
+/**
+ * Append-only log of the blocks changed by the player, written before the chunks are saved.
+ * Each record is (x, y, z, id) followed by its CRC32, replaying stops at the first damaged record.
+ * Once the chunks changed before a position are written and synced, the records before it are dropped (see checkpoint).
+ * Records are written to the file right away, they are forced to the disk by sync and checkpoint:
+ * a system crash loses the edits appended since the last sync.
+ * The file is opened on the first use, like the region files.
+ */
+public class EditJournal{
+	private static final int RECORD_SIZE = 20;
+	private static final Metrics.Counter BYTES_COUNTER = Metrics.counter("journal.bytesWritten");
+
+	private File file;
+	private FileChannel channel;
+	private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+	private boolean unsynced; // Records appended since the last sync
+
+	@FunctionalInterface
+	public interface Edit{
+		void apply(int x, int y, int z, int id);
+	}
+
+	public EditJournal(File file){
+		this.file = file;
+	}
+
+	public synchronized void append(int x, int y, int z, int id) throws IOException{
+		FileChannel channel = getChannel();
+		this.record.clear();
+		this.record.putInt(x).putInt(y).putInt(z).putInt(id);
+		CRC32 crc = new CRC32();
+		crc.update(this.record.array(), 0, RECORD_SIZE-4);
+		this.record.putInt((int)crc.getValue()).flip();
+		long position = channel.size();
+		while (this.record.hasRemaining()){
+			position += channel.write(this.record, position);
+		}
+		BYTES_COUNTER.add(RECORD_SIZE);
+		this.unsynced = true;
+	}
+
+	// The current end of the journal, to be passed to checkpoint
+	public synchronized long getPosition() throws IOException{
+		return this.channel == null ? (this.file.exists() ? this.file.length() : 0) : this.channel.size();
+	}
+
+	public synchronized void sync() throws IOException{
+		if (!this.unsynced || this.channel == null) return;
+		this.channel.force(false);
+		this.unsynced = false;
+	}
+
+	/**
+	 * Call the given edit for every record, in the order they were written.
+	 * A damaged record and everything after it are dropped.
+	 * @return the number of edits replayed
+	 */
+	public synchronized int replay(Edit edit) throws IOException{
+		if (!this.file.exists()) return 0;
+		FileChannel channel = getChannel();
+		ByteBuffer buffer = ByteBuffer.allocate((int)channel.size());
+		while (buffer.hasRemaining()){
+			if (channel.read(buffer, buffer.position()) == -1) break;
+		}
+		buffer.flip();
+
+		int count = 0;
+		CRC32 crc = new CRC32();
+		while (buffer.remaining() >= RECORD_SIZE){
+			crc.reset();
+			crc.update(buffer.array(), buffer.position(), RECORD_SIZE-4);
+			int x = buffer.getInt();
+			int y = buffer.getInt();
+			int z = buffer.getInt();
+			int id = buffer.getInt();
+			if (buffer.getInt() != (int)crc.getValue()){
+				buffer.position(buffer.position()-RECORD_SIZE);
+				break;
+			}
+			edit.apply(x, y, z, id);
+			count++;
+		}
+		if (buffer.position() < channel.size()){
+			System.out.println("Dropped "+(channel.size()-buffer.position())+" damaged bytes of the journal");
+			channel.truncate(buffer.position());
+		}
+		return count;
+	}
+
+	/**
+	 * Apply the journal to the saved chunks after a crash. Each changed chunk is loaded (or generated if the storage
+	 * has a terrain), changed and saved once, then the region files are synced and the journal is emptied.
+	 * @return the number of edits replayed
+	 */
+	public synchronized int recover(RegionStorage storage) throws IOException{
+		Map<Long, int[][][]> chunks = new LinkedHashMap<>();
+		IOException[] error = new IOException[1];
+		int count = replay((x, y, z, id) -> {
+			int chunkX = Math.floorDiv(x, Chunk.CHUNK_SIZE);
+			int chunkY = Math.floorDiv(y, Chunk.CHUNK_SIZE);
+			int chunkZ = Math.floorDiv(z, Chunk.CHUNK_SIZE);
+			long key = ChunkMap.pack(chunkX, chunkY, chunkZ);
+			int[][][] data = chunks.get(key);
+			if (data == null && !chunks.containsKey(key)){
+				try {
+					data = storage.loadChunk(chunkX, chunkY, chunkZ);
+					if (data == null) data = storage.generate(chunkX, chunkY, chunkZ);
+				} catch (IOException ex){
+					error[0] = ex;
+				}
+				chunks.put(key, data);
+			}
+			if (data != null){
+				data[Math.floorMod(x, Chunk.CHUNK_SIZE)][Math.floorMod(y, Chunk.CHUNK_SIZE)][Math.floorMod(z, Chunk.CHUNK_SIZE)] = id;
+			}
+		});
+		if (error[0] != null) throw error[0];
+
+		for (Map.Entry<Long, int[][][]> entry : chunks.entrySet()){
+			if (entry.getValue() == null) continue; // Never saved and no terrain to generate it
+			long key = entry.getKey();
+			storage.saveChunk(ChunkMap.unpackX(key), ChunkMap.unpackY(key), ChunkMap.unpackZ(key), entry.getValue());
+		}
+		storage.sync();
+		checkpoint(getPosition());
+		return count;
+	}
+
+	/**
+	 * Drop the records before the given position, the chunks they changed must be saved and synced
+	 * @param position a value returned by getPosition
+	 */
+	public synchronized void checkpoint(long position) throws IOException{
+		if (position <= 0 || (this.channel == null && !this.file.exists())) return;
+		FileChannel channel = getChannel();
+		long size = channel.size();
+		if (position >= size){
+			channel.truncate(0);
+			channel.force(false);
+			this.unsynced = false;
+			return;
+		}
+
+		// Records added meanwhile go in a new file that replaces this one, a crash leaves one of the two complete
+		ByteBuffer tail = ByteBuffer.allocate((int)(size-position));
+		while (tail.hasRemaining()){
+			if (channel.read(tail, position+tail.position()) == -1) break;
+		}
+		tail.flip();
+		Path temp = this.file.toPath().resolveSibling(this.file.getName()+".tmp");
+		try (FileChannel output = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+			while (tail.hasRemaining()){
+				output.write(tail);
+			}
+			output.force(false);
+		}
+		BYTES_COUNTER.add(size-position);
+		close();
+		Files.move(temp, this.file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		this.unsynced = false;
+	}
+
+	public synchronized void close(){
+		if (this.channel == null) return;
+		try {
+			this.channel.close();
+		} catch (IOException ex){
+			ex.printStackTrace();
+		}
+		this.channel = null;
+	}
+
+	private FileChannel getChannel() throws IOException{
+		if (this.channel == null){
+			File dir = this.file.getParentFile();
+			if (dir != null && !dir.exists()) dir.mkdir();
+			this.channel = FileChannel.open(this.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		return this.channel;
+	}
+}
@@ -0,0 +1,194 @@
+package com.orangomango.blockworld.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.BitSet;
+
+import com.orangomango.blockworld.metrics.Metrics;
+
+/**
+ * A single file holding REGION_SIZE^3 chunks.
+ * The file starts with a fixed table of (sector offset, byte length) entries, one per chunk,
+ * followed by the chunk records aligned to SECTOR_SIZE bytes.
+ * Records are never overwritten in place and the table entries are only written by sync, once the records
+ * they point to are on the disk: a crash before that leaves the table pointing to the old records.
+ * A mapped region file reads and writes the records directly in a memory mapping of the file,
+ * the mapping grows with the file.
+ */
+public class RegionFile{
+	public static final int REGION_SIZE = 8;
+	private static final int CHUNKS = REGION_SIZE*REGION_SIZE*REGION_SIZE;
+	private static final int SECTOR_SIZE = 256;
+	private static final int ENTRY_SIZE = 8;
+	private static final int HEADER_SECTORS = (CHUNKS*ENTRY_SIZE+SECTOR_SIZE-1)/SECTOR_SIZE;
+	private static final Metrics.Counter BYTES_COUNTER = Metrics.counter("storage.bytesWritten");
+
+	private FileChannel channel;
+	private MappedByteBuffer map; // Only if the file is mapped
+	private int[] offsets = new int[CHUNKS];
+	private int[] lengths = new int[CHUNKS];
+	private BitSet usedSectors = new BitSet();
+	private BitSet freedSectors = new BitSet(); // Sectors of replaced records, free after the next sync
+	private BitSet changedEntries = new BitSet(); // Table entries written by the next sync
+	private boolean modified; // Written since the last sync
+
+	public RegionFile(Path path) throws IOException{
+		this(path, false);
+	}
+
+	public RegionFile(Path path, boolean mapped) throws IOException{
+		this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SECTORS*SECTOR_SIZE);
+		if (this.channel.size() < header.capacity()){
+			this.channel.write(header, 0);
+		} else {
+			readFully(header, 0);
+			header.flip();
+			for (int i = 0; i < CHUNKS; i++){
+				this.offsets[i] = header.getInt();
+				this.lengths[i] = header.getInt();
+				if (this.offsets[i] != 0){
+					this.usedSectors.set(this.offsets[i], this.offsets[i]+getSectors(this.lengths[i]));
+				}
+			}
+		}
+		this.usedSectors.set(0, HEADER_SECTORS);
+		if (mapped){
+			this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.channel.size());
+		}
+	}
+
+	/**
+	 * Returns null if the chunk was never written.
+	 * A mapped file returns a view of the mapping, it must be read before the next write.
+	 */
+	public synchronized ByteBuffer read(int x, int y, int z) throws IOException{
+		int index = getIndex(x, y, z);
+		if (this.offsets[index] == 0) return null;
+		if (this.map != null){
+			return this.map.slice(this.offsets[index]*SECTOR_SIZE, this.lengths[index]);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(this.lengths[index]);
+		readFully(buffer, (long)this.offsets[index]*SECTOR_SIZE);
+		buffer.flip();
+		return buffer;
+	}
+
+	public synchronized void write(int x, int y, int z, ByteBuffer data) throws IOException{
+		int index = getIndex(x, y, z);
+		int length = data.remaining();
+		int sectors = getSectors(length);
+		int offset = this.offsets[index];
+
+		// The record always goes to free sectors, the old one stays intact until the new one is synced
+		if (offset != 0){
+			this.freedSectors.set(offset, offset+getSectors(this.lengths[index]));
+		}
+		offset = findFreeSectors(sectors);
+		this.usedSectors.set(offset, offset+sectors);
+		BYTES_COUNTER.add(length+ENTRY_SIZE);
+
+		this.offsets[index] = offset;
+		this.lengths[index] = length;
+		this.changedEntries.set(index);
+		this.modified = true;
+		long position = (long)offset*SECTOR_SIZE;
+		if (this.map != null){
+			ensureMapped(position+length);
+			this.map.put((int)position, data, data.position(), length);
+			data.position(data.limit());
+			return;
+		}
+
+		while (data.hasRemaining()){
+			position += this.channel.write(data, position);
+		}
+	}
+
+	public synchronized boolean contains(int x, int y, int z){
+		return this.offsets[getIndex(x, y, z)] != 0;
+	}
+
+	/**
+	 * Force the written records to the disk, then write their table entries and force them too.
+	 * The sectors of the records they replaced can then be reused.
+	 */
+	public synchronized void sync() throws IOException{
+		if (!this.modified) return;
+		if (this.map != null){
+			this.map.force();
+		} else {
+			this.channel.force(false);
+		}
+
+		ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+		for (int index = this.changedEntries.nextSetBit(0); index >= 0; index = this.changedEntries.nextSetBit(index+1)){
+			if (this.map != null){
+				this.map.putInt(index*ENTRY_SIZE, this.offsets[index]).putInt(index*ENTRY_SIZE+4, this.lengths[index]);
+			} else {
+				entry.clear();
+				entry.putInt(this.offsets[index]).putInt(this.lengths[index]).flip();
+				while (entry.hasRemaining()){
+					this.channel.write(entry, (long)index*ENTRY_SIZE+entry.position());
+				}
+			}
+		}
+		this.changedEntries.clear();
+		if (this.map != null){
+			this.map.force(0, HEADER_SECTORS*SECTOR_SIZE);
+		} else {
+			this.channel.force(false);
+		}
+
+		this.usedSectors.andNot(this.freedSectors);
+		this.freedSectors.clear();
+		this.modified = false;
+	}
+
+	// The records written since the last sync are synced first
+	public synchronized void close() throws IOException{
+		sync();
+		this.map = null;
+		this.channel.close();
+	}
+
+	// Mapping past the end of the file makes it bigger, it grows by at least half of its size to remap less often
+	private void ensureMapped(long size) throws IOException{
+		if (size <= this.map.capacity()) return;
+		long newSize = Math.max(size, this.map.capacity()*3L/2);
+		newSize = (newSize+SECTOR_SIZE-1)/SECTOR_SIZE*SECTOR_SIZE;
+		if (newSize > Integer.MAX_VALUE) throw new IOException("Region file too big to be mapped");
+		this.map.force();
+		this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+	}
+
+	private int findFreeSectors(int sectors){
+		int start = this.usedSectors.nextClearBit(HEADER_SECTORS);
+		while (true){
+			int end = this.usedSectors.nextSetBit(start);
+			if (end == -1 || end-start >= sectors){
+				return start;
+			}
+			start = this.usedSectors.nextClearBit(end);
+		}
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException{
+		while (buffer.hasRemaining()){
+			int read = this.channel.read(buffer, position);
+			if (read == -1) throw new EOFException("Truncated region file");
+			position += read;
+		}
+	}
+
+	private static int getSectors(int length){
+		return (length+SECTOR_SIZE-1)/SECTOR_SIZE;
+	}
+
+	private static int getIndex(int x, int y, int z){
+		return x+(y*REGION_SIZE+z)*REGION_SIZE;
+	}
+}
@@ -0,0 +1,294 @@
+package com.orangomango.blockworld.storage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+
+import com.orangomango.blockworld.model.Chunk;
+
+/**
+ * Stores chunks as binary records inside region files.
+ * A record is a compression flag followed by CHUNK_SIZE^3 block ids (x, y, z order),
+ * new records also have a CRC32 after the flag.
+ * Chunks of a size other than 4 go in region files with the size in their name, so a world
+ * opened with another chunk size starts from the generated terrain instead of reading wrong records.
+ * With mapped region files the records are decoded straight from the file mapping, see RegionFile.
+ * A delta record only has the (index, id) pairs of the blocks that differ from the generated terrain,
+ * it's loaded by generating the chunk again and placing the blocks on top, so it needs the seed and generator
+ * version the world was saved with (see ChunkManager).
+ */
+public class RegionStorage{
+	private static final byte COMPRESSION_NONE = 0;
+	private static final byte COMPRESSION_DEFLATE = 1;
+	private static final byte DELTA = 2;
+	private static final byte CHECKSUM = 0x10; // Flag of the type, the type is followed by the CRC32 of the rest of the record
+	private static final int CHUNK_VOLUME = Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE;
+
+	private File dir;
+	private boolean compression;
+	private boolean mapped;
+	private boolean deltas;
+	private boolean ignoreDeltas;
+	private Terrain terrain;
+	private Map<String, RegionFile> regions = new HashMap<>();
+
+	public RegionStorage(File dir, boolean compression){
+		this(dir, compression, false);
+	}
+
+	public RegionStorage(File dir, boolean compression, boolean mapped){
+		this.dir = dir;
+		this.compression = compression;
+		this.mapped = mapped;
+	}
+
+	// Generates the blocks of a chunk as they are before any change, in the same layout as saveChunk
+	public interface Terrain{
+		int[][][] generate(int x, int y, int z);
+	}
+
+	/**
+	 * @param terrain needed to load delta records, may be used from many threads
+	 * @param deltas if true the chunks are saved as delta records when they are smaller
+	 */
+	public void setTerrain(Terrain terrain, boolean deltas){
+		this.terrain = terrain;
+		this.deltas = deltas;
+	}
+
+	/**
+	 * The world was saved with another terrain generator, the delta records can't be decoded.
+	 * They are ignored (the chunks are generated again) and no new delta records are written.
+	 */
+	public void ignoreDeltas(){
+		this.ignoreDeltas = true;
+		this.deltas = false;
+	}
+
+	public void saveChunk(int x, int y, int z, int[][][] data) throws IOException{
+		ByteBuffer record = buildRecord(data);
+		if (this.deltas && this.terrain != null){
+			ByteBuffer delta = buildDelta(data, this.terrain.generate(x, y, z), record.remaining());
+			if (delta != null) record = delta;
+		}
+
+		byte type = record.get();
+		CRC32 crc = new CRC32();
+		crc.update(record.duplicate());
+		ByteBuffer checked = ByteBuffer.allocate(record.remaining()+5);
+		checked.put((byte)(type | CHECKSUM)).putInt((int)crc.getValue()).put(record).flip();
+		record = checked;
+		synchronized (this){
+			getRegion(x, y, z, true).write(Math.floorMod(x, RegionFile.REGION_SIZE), Math.floorMod(y, RegionFile.REGION_SIZE), Math.floorMod(z, RegionFile.REGION_SIZE), record);
+		}
+	}
+
+	private ByteBuffer buildRecord(int[][][] data){
+		ByteBuffer raw = ByteBuffer.allocate(CHUNK_VOLUME*2);
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+				for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+					raw.putShort((short)data[i][j][k]);
+				}
+			}
+		}
+
+		ByteBuffer record = null;
+		if (this.compression){
+			Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+			deflater.setInput(raw.array());
+			deflater.finish();
+			byte[] output = new byte[CHUNK_VOLUME*2];
+			int length = deflater.deflate(output);
+			boolean smaller = deflater.finished();
+			deflater.end();
+			if (smaller){
+				record = ByteBuffer.allocate(length+1);
+				record.put(COMPRESSION_DEFLATE).put(output, 0, length);
+			}
+		}
+		if (record == null){
+			record = ByteBuffer.allocate(raw.capacity()+1);
+			record.put(COMPRESSION_NONE).put(raw.array());
+		}
+		record.flip();
+		return record;
+	}
+
+	// The blocks that differ from the generated terrain, null if the delta is not smaller than the full (compressed) record
+	private static ByteBuffer buildDelta(int[][][] data, int[][][] base, int limit){
+		ByteBuffer entries = ByteBuffer.allocate(CHUNK_VOLUME*4);
+		int index = 0;
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+				for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+					if (data[i][j][k] != base[i][j][k]){
+						if (entries.position()+4+1 >= limit) return null;
+						entries.putShort((short)index).putShort((short)data[i][j][k]);
+					}
+					index++;
+				}
+			}
+		}
+		entries.flip();
+		ByteBuffer record = ByteBuffer.allocate(entries.remaining()+1);
+		record.put(DELTA).put(entries).flip();
+		return record;
+	}
+
+	// The blocks of the chunk before any change, null if there is no terrain
+	public int[][][] generate(int x, int y, int z){
+		return this.terrain == null ? null : this.terrain.generate(x, y, z);
+	}
+
+	// Returns null if the chunk was never saved
+	public int[][][] loadChunk(int x, int y, int z) throws IOException{
+		ByteBuffer delta;
+		synchronized (this){
+			RegionFile region = getRegion(x, y, z, false);
+			if (region == null) return null;
+			ByteBuffer record = region.read(Math.floorMod(x, RegionFile.REGION_SIZE), Math.floorMod(y, RegionFile.REGION_SIZE), Math.floorMod(z, RegionFile.REGION_SIZE));
+			if (record == null) return null;
+
+			byte type = record.get();
+			if ((type & CHECKSUM) != 0){
+				int checksum = record.getInt();
+				CRC32 crc = new CRC32();
+				crc.update(record.duplicate());
+				if ((int)crc.getValue() != checksum){
+					// Written partially, the chunk is generated again and the edits journal is replayed on top (see EditJournal)
+					System.out.println("Corrupted chunk record at "+x+" "+y+" "+z);
+					return null;
+				}
+				type &= ~CHECKSUM;
+			}
+			if (type != DELTA) return readRecord(type, record);
+			if (this.ignoreDeltas){
+				System.out.println("Chunk record at "+x+" "+y+" "+z+" was saved with another terrain generator");
+				return null;
+			}
+			delta = ByteBuffer.allocate(record.remaining()).put(record).flip(); // The record may be a view of a mapped file
+		}
+
+		// The terrain is generated outside of the lock, other chunks can be loaded meanwhile
+		if (this.terrain == null) throw new IOException("The terrain is needed to load a delta record");
+		int[][][] data = this.terrain.generate(x, y, z);
+		while (delta.hasRemaining()){
+			int index = delta.getShort() & 0xFFFF;
+			int id = delta.getShort();
+			data[index/(Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE)][index/Chunk.CHUNK_SIZE%Chunk.CHUNK_SIZE][index%Chunk.CHUNK_SIZE] = id;
+		}
+		return data;
+	}
+
+	private static int[][][] readRecord(byte compressionType, ByteBuffer record) throws IOException{
+		ByteBuffer raw;
+		if (compressionType == COMPRESSION_DEFLATE){
+			Inflater inflater = new Inflater();
+			inflater.setInput(record);
+			byte[] output = new byte[CHUNK_VOLUME*2];
+			try {
+				inflater.inflate(output);
+			} catch (DataFormatException ex){
+				throw new IOException("Corrupted chunk record", ex);
+			} finally {
+				inflater.end();
+			}
+			raw = ByteBuffer.wrap(output);
+		} else {
+			raw = record;
+		}
+
+		int[][][] data = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // x
+			for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+				for (int k = 0; k < Chunk.CHUNK_SIZE; k++){ // z
+					data[i][j][k] = raw.getShort();
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Move the chunks saved with the old text format (one .chunk file per chunk) into region files.
+	 * @return the number of converted chunks
+	 */
+	public synchronized int convertLegacyChunks(){
+		if (Chunk.CHUNK_SIZE != 4) return 0; // The old format only had 4x4x4 chunks
+		File[] files = this.dir.listFiles((d, name) -> name.endsWith(".chunk"));
+		if (files == null) return 0;
+		int count = 0;
+		for (File file : files){
+			try {
+				String[] coords = file.getName().substring(0, file.getName().length()-6).split("_");
+				int x = Integer.parseInt(coords[0]);
+				int y = Integer.parseInt(coords[1]);
+				int z = Integer.parseInt(coords[2]);
+				saveChunk(x, y, z, readLegacyChunk(file));
+				file.delete();
+				count++;
+			} catch (IOException | RuntimeException ex){
+				System.out.println("Could not convert "+file.getName());
+				ex.printStackTrace();
+			}
+		}
+		return count;
+	}
+
+	public static int[][][] readLegacyChunk(File file) throws IOException{
+		int[][][] chunkData = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			for (int i = 0; i < Chunk.CHUNK_SIZE; i++){ // z
+				for (int j = 0; j < Chunk.CHUNK_SIZE; j++){ // y
+					String line = reader.readLine();
+					int k = 0;
+					for (String piece : line.split(" ")){
+						int id = Integer.parseInt(piece);
+						chunkData[k++][j][i] = id;
+					}
+				}
+				reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return chunkData;
+	}
+
+	// Force the chunks saved since the last call to the disk
+	public synchronized void sync() throws IOException{
+		for (RegionFile region : this.regions.values()){
+			region.sync();
+		}
+	}
+
+	public synchronized void close(){
+		for (RegionFile region : this.regions.values()){
+			try {
+				region.close();
+			} catch (IOException ex){
+				ex.printStackTrace();
+			}
+		}
+		this.regions.clear();
+	}
+
+	private RegionFile getRegion(int x, int y, int z, boolean create) throws IOException{
+		int rx = Math.floorDiv(x, RegionFile.REGION_SIZE);
+		int ry = Math.floorDiv(y, RegionFile.REGION_SIZE);
+		int rz = Math.floorDiv(z, RegionFile.REGION_SIZE);
+		String name = Chunk.CHUNK_SIZE == 4 ? String.format("r.%d.%d.%d.region", rx, ry, rz) : String.format("r.%d.%d.%d.s%d.region", rx, ry, rz, Chunk.CHUNK_SIZE);
+		RegionFile region = this.regions.get(name);
+		if (region == null){
+			File file = new File(this.dir, name);
+			if (!create && !file.exists()) return null;
+			if (!this.dir.exists()) this.dir.mkdir();
+			region = new RegionFile(file.toPath(), this.mapped);
+			this.regions.put(name, region);
+		}
+		return region;
+	}
+}
@@ -33,9 +33,10 @@ public class Util{
 	}
 
 	public static Point3D getChunkPos(Point3D pos){
-		int chunkX = (int)(pos.getX()/Chunk.CHUNK_SIZE);
-		int chunkY = (int)(pos.getY()/Chunk.CHUNK_SIZE);
-		int chunkZ = (int)(pos.getZ()/Chunk.CHUNK_SIZE);
+		// Rounded down, the player can be above the world (negative y)
+		int chunkX = Math.floorDiv((int)Math.floor(pos.getX()), Chunk.CHUNK_SIZE);
+		int chunkY = Math.floorDiv((int)Math.floor(pos.getY()), Chunk.CHUNK_SIZE);
+		int chunkZ = Math.floorDiv((int)Math.floor(pos.getZ()), Chunk.CHUNK_SIZE);
 		return new Point3D(chunkX, chunkY, chunkZ);
 	}
 }
\ No newline at end of file
@@ -2,6 +2,7 @@ module com.orangomango.blockworld{
 	requires transitive javafx.controls;
 	requires com.orangomango.rendering3d;
 	requires org.json;
+	requires jdk.jfr;
 
 	exports com.orangomango.blockworld;
 }
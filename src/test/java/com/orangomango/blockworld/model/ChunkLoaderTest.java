@@ -0,0 +1,86 @@
+package com.orangomango.blockworld.model;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import javafx.geometry.Point3D;
+
+import java.util.*;
+import java.nio.file.Path;
+
+/**
+ * Chunks loaded by ChunkManager on the worker pool, with the blocks generated across chunks merged
+ * as the chunks arrive, must have the same blocks as the same area generated one chunk after the other.
+ */
+public class ChunkLoaderTest{
+	private static final int SEED = 12345;
+	private static final long TIMEOUT = 60_000;
+
+	@TempDir
+	Path home;
+	private String oldHome;
+
+	// The saved world is read from the user home
+	@BeforeEach
+	public void setHome(){
+		this.oldHome = System.getProperty("user.home");
+		System.setProperty("user.home", this.home.toString());
+	}
+
+	@AfterEach
+	public void restoreHome(){
+		System.setProperty("user.home", this.oldHome);
+	}
+
+	@Test
+	public void parallelLoadMatchesSerial() throws InterruptedException{
+		World world = new World(SEED, false);
+		ChunkManager manager = new ChunkManager(world, 9);
+		manager.manage(new Point3D(6*Chunk.CHUNK_SIZE, 16, 6*Chunk.CHUNK_SIZE));
+		long start = System.currentTimeMillis();
+		while (manager.isLoading()){
+			assertTrue(System.currentTimeMillis()-start < TIMEOUT, "The chunks were not loaded in time");
+			manager.update();
+			Thread.sleep(1);
+		}
+		List<Chunk> loaded = new ArrayList<>(world.getChunks());
+		assertFalse(loaded.isEmpty());
+
+		// The same chunks, all generated before the blocks they place in other chunks are merged
+		World serialWorld = new World(SEED, false);
+		List<Chunk> serial = new ArrayList<>();
+		for (Chunk chunk : loaded){
+			Chunk.ChunkPosition pos = new Chunk.ChunkPosition(chunk.getX(), chunk.getY(), chunk.getZ());
+			Chunk other = new Chunk(serialWorld, pos);
+			serialWorld.addChunk(other, pos);
+			serial.add(other);
+		}
+		for (Chunk chunk : serial){
+			for (Block block : chunk.takeOverflowBlocks()){
+				Chunk other = serialWorld.getChunkAt(block.getX()/Chunk.CHUNK_SIZE, block.getY()/Chunk.CHUNK_SIZE, block.getZ()/Chunk.CHUNK_SIZE);
+				if (other == null){
+					serialWorld.getPendingBlocks().add(block.getX(), block.getY(), block.getZ(), block.getId());
+				} else if (block.getX() >= 0 && block.getY() >= 0 && block.getZ() >= 0){
+					other.mergeBlock(block.getId(), block.getX() % Chunk.CHUNK_SIZE, block.getY() % Chunk.CHUNK_SIZE, block.getZ() % Chunk.CHUNK_SIZE);
+				}
+			}
+		}
+
+		for (int i = 0; i < loaded.size(); i++){
+			assertArrayEquals(getBlocks(serial.get(i)), getBlocks(loaded.get(i)), "Blocks differ in chunk "+loaded.get(i));
+		}
+	}
+
+	private static int[] getBlocks(Chunk chunk){
+		int[] output = new int[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+		for (int x = 0; x < Chunk.CHUNK_SIZE; x++){
+			for (int y = 0; y < Chunk.CHUNK_SIZE; y++){
+				for (int z = 0; z < Chunk.CHUNK_SIZE; z++){
+					output[x+(y*Chunk.CHUNK_SIZE+z)*Chunk.CHUNK_SIZE] = chunk.getBlockId(x, y, z);
+				}
+			}
+		}
+		return output;
+	}
+}
@@ -0,0 +1,120 @@
+package com.orangomango.blockworld.model;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import javafx.application.Platform;
+import javafx.geometry.Point3D;
+
+import java.util.*;
+import java.nio.file.Path;
+
+import com.orangomango.rendering3d.model.Mesh;
+
+/**
+ * The faces kept by the chunks, culled again only where a load, an unload or an edit changed something,
+ * must be the same as a full cull of every chunk. The player moves around while blocks are placed and
+ * broken at random, ChunkManager schedules the culls like in the game.
+ */
+public class ChunkMesherTest{
+	private static final int SEED = 12345;
+	private static final int MOVES = 4;
+	private static final int EDITS = 300; // After each move
+	private static final long TIMEOUT = 60_000;
+	private static final String[] TYPES = {null, null, "stone", "dirt", "glass", "leaves", "water", "torch", "flower_red"};
+
+	@TempDir
+	Path home;
+	private String oldHome;
+
+	// Building the meshes loads the block images
+	@BeforeAll
+	public static void startToolkit(){
+		try {
+			Platform.startup(() -> {});
+		} catch (IllegalStateException ex){
+			// Already started
+		}
+	}
+
+	@BeforeEach
+	public void setHome(){
+		this.oldHome = System.getProperty("user.home");
+		System.setProperty("user.home", this.home.toString());
+	}
+
+	@AfterEach
+	public void restoreHome(){
+		System.setProperty("user.home", this.oldHome);
+	}
+
+	@Test
+	public void targetedCullMatchesFullCull() throws InterruptedException{
+		World world = new World(SEED, false);
+		world.setRenderListener(new RenderListener(){
+			@Override
+			public void addMesh(Mesh mesh){
+			}
+
+			@Override
+			public void removeMesh(Mesh mesh){
+			}
+
+			@Override
+			public void clearMeshes(){
+			}
+		});
+		ChunkManager manager = new ChunkManager(world, 9);
+		Random random = new Random(3);
+		Point3D position = new Point3D(6*Chunk.CHUNK_SIZE, 16, 6*Chunk.CHUNK_SIZE);
+		for (int move = 0; move < MOVES; move++){
+			// Chunks are loaded and unloaded while the player edits the blocks around
+			manager.manage(position);
+			long start = System.currentTimeMillis();
+			while (manager.isLoading()){
+				assertTrue(System.currentTimeMillis()-start < TIMEOUT, "The chunks were not loaded in time");
+				editRandomBlock(world, random, position);
+				manager.update();
+				Thread.sleep(1);
+			}
+			for (int i = 0; i < EDITS; i++){
+				editRandomBlock(world, random, position);
+				manager.update();
+			}
+			position = position.add(Chunk.CHUNK_SIZE, 0, random.nextBoolean() ? Chunk.CHUNK_SIZE : 0);
+		}
+
+		// Rebuild what was left over the frame budget
+		for (int i = 0; i < 1000 && hasDirtyChunks(world); i++){
+			manager.update();
+		}
+		assertFalse(hasDirtyChunks(world), "Some chunks were never rebuilt");
+
+		for (Chunk chunk : world.getChunks()){
+			byte[] faces = new byte[Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE*Chunk.CHUNK_SIZE];
+			new ChunkMesher(chunk).cull(faces);
+			assertArrayEquals(faces, chunk.getFaces(), "Faces differ in chunk "+chunk);
+		}
+	}
+
+	private static void editRandomBlock(World world, Random random, Point3D position){
+		int range = 3*Chunk.CHUNK_SIZE;
+		int x = (int)position.getX()-range+random.nextInt(2*range);
+		int y = 8+random.nextInt(12);
+		int z = (int)position.getZ()-range+random.nextInt(2*range);
+		String type = TYPES[random.nextInt(TYPES.length)];
+		if (type == null){
+			world.removeBlockAt(x, y, z);
+		} else {
+			world.setBlockAt(x, y, z, type);
+		}
+	}
+
+	private static boolean hasDirtyChunks(World world){
+		for (Chunk chunk : world.getChunks()){
+			if (chunk.isDirty()) return true;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,134 @@
+package com.orangomango.blockworld.model;
+
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+/**
+ * The light kept up to date by LightEngine, chunk by chunk as they are loaded in random order and
+ * block by block as they are edited, must be the same as a flood fill of the whole area from scratch.
+ */
+public class LightEngineTest{
+	private static final int SIZE = 3; // Chunks on the x and z axis
+	private static final int HEIGHT = 2; // Chunks on the y axis
+	private static final int TRIALS = 20;
+	private static final int EDITS = 200;
+	private static final String[] TYPES = {null, null, null, null, "stone", "stone", "leaves", "glass", "water", "torch", "flower_red"};
+
+	private World world;
+
+	@Test
+	public void incrementalLightMatchesFullRecomputation(){
+		Random random = new Random(7);
+		for (int trial = 0; trial < TRIALS; trial++){
+			this.world = new World(1, false);
+			List<Chunk.ChunkPosition> positions = new ArrayList<>();
+			for (int x = 0; x < SIZE; x++){
+				for (int y = 0; y < HEIGHT; y++){
+					for (int z = 0; z < SIZE; z++){
+						positions.add(new Chunk.ChunkPosition(x, y, z));
+					}
+				}
+			}
+			Collections.shuffle(positions, random);
+
+			// Load the chunks like ChunkLoader and ChunkManager do
+			for (Chunk.ChunkPosition pos : positions){
+				Chunk chunk = new Chunk(this.world, pos, getRandomBlocks(random, pos));
+				this.world.getLightEngine().initChunk(chunk);
+				this.world.addChunk(chunk, pos);
+				this.world.getLightEngine().propagateBorders(chunk);
+			}
+			checkLight("Trial "+trial+" after loading");
+
+			for (int i = 0; i < EDITS; i++){
+				int x = random.nextInt(SIZE*Chunk.CHUNK_SIZE);
+				int y = random.nextInt(HEIGHT*Chunk.CHUNK_SIZE);
+				int z = random.nextInt(SIZE*Chunk.CHUNK_SIZE);
+				String type = TYPES[random.nextInt(TYPES.length)];
+				if (type == null){
+					this.world.removeBlockAt(x, y, z);
+				} else {
+					this.world.setBlockAt(x, y, z, type);
+				}
+				checkLight("Trial "+trial+" after edit "+i+" ("+type+" at "+x+" "+y+" "+z+")");
+			}
+		}
+	}
+
+	// The top 3 rows are left empty so that some sky light gets in
+	private static int[][][] getRandomBlocks(Random random, Chunk.ChunkPosition pos){
+		int[][][] data = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		for (int x = 0; x < Chunk.CHUNK_SIZE; x++){
+			for (int y = 0; y < Chunk.CHUNK_SIZE; y++){
+				for (int z = 0; z < Chunk.CHUNK_SIZE; z++){
+					String type = TYPES[random.nextInt(TYPES.length)];
+					if (pos.getY()*Chunk.CHUNK_SIZE+y >= 3 && type != null && random.nextInt(3) > 0){
+						data[x][y][z] = Atlas.MAIN_ATLAS.getBlockId(type);
+					}
+				}
+			}
+		}
+		return data;
+	}
+
+	private void checkLight(String message){
+		int width = SIZE*Chunk.CHUNK_SIZE;
+		int height = HEIGHT*Chunk.CHUNK_SIZE;
+		int[][][] sky = new int[width][height][width];
+		int[][][] block = new int[width][height][width];
+		ArrayDeque<int[]> skyQueue = new ArrayDeque<>();
+		ArrayDeque<int[]> blockQueue = new ArrayDeque<>();
+		for (int x = 0; x < width; x++){
+			for (int z = 0; z < width; z++){
+				for (int y = 0; y < height && !isOpaque(x, y, z); y++){
+					sky[x][y][z] = Block.MAX_LIGHT_INTENSITY;
+					skyQueue.add(new int[]{x, y, z});
+				}
+				for (int y = 0; y < height; y++){
+					int emission = Atlas.MAIN_ATLAS.getLightEmission(this.world.getBlockIdAt(x, y, z));
+					if (emission > 0){
+						block[x][y][z] = emission;
+						blockQueue.add(new int[]{x, y, z});
+					}
+				}
+			}
+		}
+		floodFill(sky, skyQueue, true);
+		floodFill(block, blockQueue, false);
+
+		for (int x = 0; x < width; x++){
+			for (int y = 0; y < height; y++){
+				for (int z = 0; z < width; z++){
+					int packed = this.world.getLightAt(x, y, z);
+					assertEquals(sky[x][y][z], (packed >> 4) & 0xF, message+", sky light at "+x+" "+y+" "+z);
+					assertEquals(block[x][y][z], packed & 0xF, message+", block light at "+x+" "+y+" "+z);
+				}
+			}
+		}
+	}
+
+	// Full sky light goes down (y+1) without losing intensity, any other step loses one level
+	private void floodFill(int[][][] light, ArrayDeque<int[]> queue, boolean sky){
+		while (!queue.isEmpty()){
+			int[] pos = queue.poll();
+			int level = light[pos[0]][pos[1]][pos[2]];
+			for (int[] dir : ChunkMesher.NORMALS){
+				int x = pos[0]+dir[0];
+				int y = pos[1]+dir[1];
+				int z = pos[2]+dir[2];
+				if (x < 0 || y < 0 || z < 0 || x >= light.length || y >= light[0].length || z >= light[0][0].length || isOpaque(x, y, z)) continue;
+				int value = sky && dir[1] == 1 && level == Block.MAX_LIGHT_INTENSITY ? level : level-1;
+				if (light[x][y][z] < value){
+					light[x][y][z] = value;
+					queue.add(new int[]{x, y, z});
+				}
+			}
+		}
+	}
+
+	private boolean isOpaque(int x, int y, int z){
+		return Atlas.MAIN_ATLAS.isLightOpaque(this.world.getBlockIdAt(x, y, z));
+	}
+}
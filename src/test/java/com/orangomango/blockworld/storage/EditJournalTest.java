@@ -0,0 +1,198 @@
+package com.orangomango.blockworld.storage;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+import com.orangomango.blockworld.model.Chunk;
+
+/**
+ * Crashes are simulated by damaging the files the way an interrupted write leaves them,
+ * then the journal is opened again like after a restart.
+ */
+public class EditJournalTest{
+	private static final int RECORD_SIZE = 20;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	public void tornTailIsDropped() throws IOException{
+		File file = this.dir.resolve("journal.bin").toFile();
+		EditJournal journal = new EditJournal(file);
+		for (int i = 0; i < 5; i++){
+			journal.append(i, 2*i, 3*i, i+1);
+		}
+		journal.close();
+
+		// The last record was only partially written
+		try (FileOutputStream stream = new FileOutputStream(file, true)){
+			stream.write(new byte[]{0, 0, 0, 9, 0, 0, 0});
+		}
+
+		journal = new EditJournal(file);
+		List<int[]> edits = replay(journal);
+		assertEquals(5, edits.size());
+		for (int i = 0; i < 5; i++){
+			assertArrayEquals(new int[]{i, 2*i, 3*i, i+1}, edits.get(i));
+		}
+		assertEquals(5*RECORD_SIZE, file.length(), "The torn record is truncated");
+
+		// New records go after the last complete one
+		journal.append(7, 8, 9, 10);
+		journal.close();
+		edits = replay(new EditJournal(file));
+		assertEquals(6, edits.size());
+		assertArrayEquals(new int[]{7, 8, 9, 10}, edits.get(5));
+	}
+
+	@Test
+	public void damagedRecordStopsReplay() throws IOException{
+		File file = this.dir.resolve("journal.bin").toFile();
+		EditJournal journal = new EditJournal(file);
+		for (int i = 0; i < 5; i++){
+			journal.append(i, i, i, i+1);
+		}
+		journal.close();
+		flipByte(file.toPath(), 2*RECORD_SIZE+5);
+
+		List<int[]> edits = replay(new EditJournal(file));
+		assertEquals(2, edits.size(), "Only the records before the damaged one are replayed");
+		assertEquals(2*RECORD_SIZE, file.length());
+	}
+
+	@Test
+	public void replayAfterCheckpoint() throws IOException{
+		File file = this.dir.resolve("journal.bin").toFile();
+		EditJournal journal = new EditJournal(file);
+		for (int i = 0; i < 3; i++){
+			journal.append(i, 0, 0, 1);
+		}
+		long position = journal.getPosition();
+		journal.append(10, 0, 0, 2);
+		journal.append(11, 0, 0, 3);
+		journal.checkpoint(position);
+
+		// The records added after the checkpoint position are kept, in the same journal and after a restart
+		journal.append(12, 0, 0, 4);
+		List<int[]> edits = replay(journal);
+		journal.close();
+		assertEquals(3, edits.size());
+		assertArrayEquals(new int[]{10, 0, 0, 2}, edits.get(0));
+		assertArrayEquals(new int[]{12, 0, 0, 4}, edits.get(2));
+		assertEquals(3, replay(new EditJournal(file)).size());
+	}
+
+	@Test
+	public void recoverRestoresEditsOverCorruptedRecord() throws IOException{
+		RegionStorage storage = createStorage();
+		EditJournal journal = new EditJournal(this.dir.resolve("journal.bin").toFile());
+		int[][][] data = getTerrain();
+		journal.append(1, 0, 2, 7);
+		data[1][0][2] = 7;
+		storage.saveChunk(0, 0, 0, data);
+		storage.close();
+		journal.close();
+
+		// The record was not completely written when the game crashed
+		Path region = getRegionFile();
+		flipByte(region, getRecordOffset(region, 0)+8);
+		storage = createStorage();
+		assertNull(storage.loadChunk(0, 0, 0), "The damaged record is not loaded");
+
+		journal = new EditJournal(this.dir.resolve("journal.bin").toFile());
+		assertEquals(1, journal.recover(storage));
+		assertArrayEquals(flatten(data), flatten(storage.loadChunk(0, 0, 0)));
+		assertEquals(0, journal.getPosition(), "The journal is emptied once the chunks are synced");
+		journal.close();
+		storage.close();
+	}
+
+	@Test
+	public void recoverAfterCheckpointReplaysOnlyNewEdits() throws IOException{
+		RegionStorage storage = createStorage();
+		EditJournal journal = new EditJournal(this.dir.resolve("journal.bin").toFile());
+		int[][][] data = getTerrain();
+		journal.append(0, 0, 0, 5);
+		data[0][0][0] = 5;
+		storage.saveChunk(0, 0, 0, data);
+		storage.sync();
+		journal.checkpoint(journal.getPosition());
+
+		// Changes after the checkpoint, the game crashed before the chunk was saved again
+		journal.append(3, 3, 3, 0);
+		journal.append(Chunk.CHUNK_SIZE, 1, 0, 6); // Chunk never saved, generated by the recovery
+		data[3][3][3] = 0;
+		journal.close();
+		storage.close();
+
+		storage = createStorage();
+		journal = new EditJournal(this.dir.resolve("journal.bin").toFile());
+		assertEquals(2, journal.recover(storage));
+		assertArrayEquals(flatten(data), flatten(storage.loadChunk(0, 0, 0)));
+		int[][][] other = getTerrain();
+		other[0][1][0] = 6;
+		assertArrayEquals(flatten(other), flatten(storage.loadChunk(1, 0, 0)));
+		assertEquals(0, journal.recover(storage), "Nothing is replayed twice");
+		journal.close();
+		storage.close();
+	}
+
+	private RegionStorage createStorage(){
+		RegionStorage storage = new RegionStorage(this.dir.toFile(), true);
+		storage.setTerrain((x, y, z) -> getTerrain(), false);
+		return storage;
+	}
+
+	// Stone in the lower half of the chunk
+	private static int[][][] getTerrain(){
+		int[][][] data = new int[Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE][Chunk.CHUNK_SIZE];
+		for (int x = 0; x < Chunk.CHUNK_SIZE; x++){
+			for (int y = Chunk.CHUNK_SIZE/2; y < Chunk.CHUNK_SIZE; y++){
+				Arrays.fill(data[x][y], 3);
+			}
+		}
+		return data;
+	}
+
+	private Path getRegionFile() throws IOException{
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir, "*.region")){
+			return stream.iterator().next();
+		}
+	}
+
+	// Byte offset of the record of a chunk, read from the table at the start of the region file
+	private static int getRecordOffset(Path region, int index) throws IOException{
+		try (FileChannel channel = FileChannel.open(region, StandardOpenOption.READ)){
+			ByteBuffer entry = ByteBuffer.allocate(4);
+			channel.read(entry, index*8L);
+			return entry.flip().getInt()*256;
+		}
+	}
+
+	private static void flipByte(Path file, long position) throws IOException{
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			ByteBuffer value = ByteBuffer.allocate(1);
+			channel.read(value, position);
+			value.put(0, (byte)(value.get(0) ^ 0xFF));
+			value.rewind();
+			channel.write(value, position);
+		}
+	}
+
+	private static List<int[]> replay(EditJournal journal) throws IOException{
+		List<int[]> output = new ArrayList<>();
+		journal.replay((x, y, z, id) -> output.add(new int[]{x, y, z, id}));
+		return output;
+	}
+
+	private static int[] flatten(int[][][] data){
+		return Arrays.stream(data).flatMap(Arrays::stream).flatMapToInt(Arrays::stream).toArray();
+	}
+}
@@ -0,0 +1,70 @@
+package com.orangomango.blockworld.storage;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+
+/**
+ * A copy of the file taken before sync is what the disk holds if the game crashes at that point,
+ * it must still point to the last synced records.
+ */
+public class RegionFileTest{
+	@TempDir
+	Path dir;
+
+	@Test
+	public void tableIsWrittenBySync() throws IOException{
+		checkCrashBeforeSync(false);
+	}
+
+	@Test
+	public void mappedTableIsWrittenBySync() throws IOException{
+		checkCrashBeforeSync(true);
+	}
+
+	private void checkCrashBeforeSync(boolean mapped) throws IOException{
+		Path path = this.dir.resolve("r.0.0.0.region");
+		RegionFile region = new RegionFile(path, mapped);
+		byte[] first = getRecord(300, 1);
+		byte[] second = getRecord(700, 2);
+		region.write(1, 2, 3, ByteBuffer.wrap(first));
+		region.sync();
+		region.write(1, 2, 3, ByteBuffer.wrap(second));
+		region.write(4, 4, 4, ByteBuffer.wrap(second));
+		assertArrayEquals(second, getBytes(region.read(1, 2, 3)), "The new record is read before it's synced");
+
+		Path crash = this.dir.resolve("crash.region");
+		Files.copy(path, crash);
+		RegionFile copy = new RegionFile(crash, mapped);
+		assertArrayEquals(first, getBytes(copy.read(1, 2, 3)), "The table still points to the synced record");
+		assertNull(copy.read(4, 4, 4), "A record that was never synced is not in the table");
+		copy.close();
+
+		region.sync();
+		Path synced = this.dir.resolve("synced.region");
+		Files.copy(path, synced);
+		copy = new RegionFile(synced, mapped);
+		assertArrayEquals(second, getBytes(copy.read(1, 2, 3)));
+		assertArrayEquals(second, getBytes(copy.read(4, 4, 4)));
+		copy.close();
+		region.close();
+	}
+
+	private static byte[] getRecord(int length, int seed){
+		byte[] output = new byte[length];
+		for (int i = 0; i < length; i++){
+			output[i] = (byte)(i*31+seed);
+		}
+		return output;
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer){
+		byte[] output = new byte[buffer.remaining()];
+		buffer.get(output);
+		return output;
+	}
+}